@@ -0,0 +1,67 @@
+uniform vec4 g_LightColor;
+uniform vec4 g_LightPosition;
+uniform vec4 g_AmbientLightColor;
+
+#ifdef DIFFUSEMAP
+uniform sampler2D m_DiffuseMap;
+#endif
+
+#ifdef NORMALMAP
+uniform sampler2D m_NormalMap;
+#endif
+
+#ifdef DISCARD_ALPHA
+uniform float m_AlphaDiscardThreshold;
+#endif
+
+#ifdef MATERIAL_COLORS
+uniform vec4 m_Ambient;
+uniform vec4 m_Diffuse;
+#endif
+
+varying vec2 texCoord;
+varying vec3 wPosition;
+varying vec3 vRight;
+varying vec3 vFacing;
+
+void main(){
+    vec4 diffuse = vec4(1.0);
+    #ifdef DIFFUSEMAP
+        diffuse = texture2D(m_DiffuseMap, texCoord);
+    #endif
+
+    #ifdef DISCARD_ALPHA
+        if( diffuse.a < m_AlphaDiscardThreshold ) {
+            discard;
+        }
+    #endif
+
+    vec3 normal = vFacing;
+    #ifdef NORMALMAP
+        // Encoded in the view space of the atlas cell camera by the
+        // PreNormalPass technique, which maps onto the billboard
+        vec3 encoded = texture2D(m_NormalMap, texCoord).xyz;
+        vec3 n = vec3(encoded.xy * 2.0 - 1.0, 1.0 - encoded.z * 2.0);
+        normal = normalize(n.x * vRight + vec3(0.0, n.y, 0.0) + n.z * vFacing);
+    #endif
+
+    vec4 ambientColor = vec4(1.0);
+    vec4 diffuseColor = vec4(1.0);
+    #ifdef MATERIAL_COLORS
+        ambientColor = m_Ambient;
+        diffuseColor = m_Diffuse;
+    #endif
+
+    // Directional lights have a w of 0 in the light color
+    vec3 lightDir;
+    if( g_LightColor.w < 0.5 ) {
+        lightDir = normalize(-g_LightPosition.xyz);
+    } else {
+        lightDir = normalize(g_LightPosition.xyz - wPosition);
+    }
+    float lambert = max(dot(normal, lightDir), 0.0);
+
+    vec3 color = diffuse.rgb * (g_AmbientLightColor.rgb * ambientColor.rgb
+                                + g_LightColor.rgb * diffuseColor.rgb * lambert);
+    gl_FragColor = vec4(color, diffuse.a * diffuseColor.a);
+}
@@ -0,0 +1,80 @@
+#define QUARTER_PI 0.78539816
+#define HALF_PI 1.57079633
+#define TWO_PI 6.28318531
+
+uniform mat4 g_ViewProjectionMatrix;
+uniform vec3 g_CameraPosition;
+uniform float g_Time;
+
+uniform int m_AtlasCellCount;
+uniform int m_AtlasAngleCount;
+
+#ifdef USE_WIND
+uniform sampler2D m_WindNoise;
+uniform float m_TrunkFlexibility;
+#endif
+
+attribute vec3 inPosition;    // the world position of the tree's axis at this corner's height
+attribute float inSize;       // the signed distance of the corner from the axis
+attribute vec2 inTexCoord;    // the corner's position within an atlas cell
+attribute float inTexCoord2;  // the yaw of the tree around the y axis
+
+varying vec2 texCoord;
+varying vec3 wPosition;
+varying vec3 vRight;
+varying vec3 vFacing;
+
+void main(){
+    vec3 wPos = inPosition;
+    vec3 toCamera = g_CameraPosition - wPos;
+
+    // Billboarded around the y axis like the regular impostors
+    vec3 facing = vec3(toCamera.x, 0.0, toCamera.z);
+    float len = length(facing);
+    facing = len > 0.0001 ? facing / len : vec3(0.0, 0.0, 1.0);
+    vec3 right = vec3(facing.z, 0.0, -facing.x);
+
+    #ifdef USE_WIND
+        // Only the top of the quad sways
+        vec2 noiseCoord = wPos.xz * 0.01 + vec2(g_Time * 0.05);
+        vec2 sway = texture2DLod(m_WindNoise, noiseCoord, 0.0).rg * 2.0 - 1.0;
+        wPos.xz += sway * inTexCoord.y * m_TrunkFlexibility * abs(inSize) * 0.05;
+    #endif
+
+    // The view angle in the tree's own space using the same convention
+    // as AtlasLayout.getAngle().  The tree's yaw is baked out of the
+    // batched positions so it comes in per vertex.
+    float angle = atan(facing.x, facing.z) - inTexCoord2;
+    float cell;
+    if( m_AtlasAngleCount == 4 ) {
+        // The original layout runs 45, -45, 135, 225 degrees
+        float quadrant = mod(floor((angle - QUARTER_PI) / HALF_PI + 0.5), 4.0);
+        if( quadrant < 0.5 ) {
+            cell = 0.0;
+        } else if( quadrant < 1.5 ) {
+            cell = 2.0;
+        } else if( quadrant < 2.5 ) {
+            cell = 3.0;
+        } else {
+            cell = 1.0;
+        }
+    } else {
+        float step = TWO_PI / float(m_AtlasAngleCount);
+        cell = mod(floor((QUARTER_PI - angle) / step + 0.5), float(m_AtlasAngleCount));
+    }
+
+    #ifdef ATLAS_TOP_DOWN
+        // The top-down cell always comes after the angle cells
+        if( normalize(toCamera).y > 0.85 ) {
+            cell = float(m_AtlasAngleCount);
+        }
+    #endif
+
+    texCoord = vec2((cell + inTexCoord.x) / float(m_AtlasCellCount), inTexCoord.y);
+
+    wPos += right * inSize;
+    wPosition = wPos;
+    vRight = right;
+    vFacing = facing;
+    gl_Position = g_ViewProjectionMatrix * vec4(wPos, 1.0);
+}
@@ -38,6 +38,7 @@ package com.simsilica.arboreal;
 
 import com.simsilica.builder.BuilderState;
 import com.jme3.app.Application;
+import com.jme3.profile.AppProfiler;
 import com.jme3.bounding.BoundingBox;
 import com.jme3.font.BitmapFont;
 import com.jme3.font.BitmapText;
@@ -45,36 +46,43 @@ import com.jme3.light.AmbientLight;
 import com.jme3.light.DirectionalLight;
 import com.jme3.material.Material;
 import com.jme3.math.ColorRGBA;
-import com.jme3.math.FastMath;
 import com.jme3.math.Quaternion;
 import com.jme3.math.Vector3f;
+import com.jme3.post.SceneProcessor;
 import com.jme3.renderer.Camera;
 import com.jme3.renderer.RenderManager;
 import com.jme3.renderer.Renderer;
 import com.jme3.renderer.ViewPort;
+import com.jme3.renderer.queue.RenderQueue;
 import com.jme3.renderer.queue.RenderQueue.Bucket;
 import com.jme3.scene.Geometry;
 import com.jme3.scene.Mesh;
 import com.jme3.scene.Node;
-import com.jme3.scene.VertexBuffer;
 import com.jme3.scene.debug.WireBox;
 import com.jme3.scene.shape.Quad;
 import com.jme3.texture.FrameBuffer;
 import com.jme3.texture.Image;
 import com.jme3.texture.Image.Format;
+import com.jme3.texture.Texture;
 import com.jme3.texture.Texture2D;
-import com.jme3.util.BufferUtils;
+import com.simsilica.arboreal.AtlasPostProcessor.AtlasImages;
+import com.simsilica.arboreal.LevelOfDetailParameters.ReductionType;
 import com.simsilica.arboreal.mesh.BillboardedLeavesMeshGenerator;
 import com.simsilica.arboreal.mesh.SkinnedTreeMeshGenerator;
 import com.simsilica.arboreal.mesh.Vertex;
 import com.simsilica.builder.Builder;
 import com.simsilica.builder.BuilderReference;
 import com.simsilica.lemur.GuiGlobals;
+import com.simsilica.lemur.core.VersionedHolder;
 import com.simsilica.lemur.core.VersionedReference;
 import com.simsilica.lemur.event.BaseAppState;
+import com.simsilica.lemur.props.PropertyPanel;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -88,23 +96,57 @@ public class AtlasGeneratorState extends BaseAppState {
     static Logger log = LoggerFactory.getLogger(AtlasGeneratorState.class);
     
     private VersionedReference<TreeParameters> treeParametersRef;
+    private VersionedReference<TreeParameters> lodParametersRef;
+    private TreeSkeletonCache skeletons;
     private Material treeMaterial;    
     private Material leafMaterial;    
 
     private Builder builder;
     private AtlasTreeBuilderReference builderRef; 
+    
+    // The atlas is only generated when some level of detail
+    // actually displays it.
+    private boolean impostorsUsed;
+    private boolean atlasStale = true;
 
     private Mesh trunkMesh;
     private Mesh leafMesh;
+    private BoundingBox trunkBounds;
+    private BoundingBox leafBounds;
  
-    private FrameBuffer diffuseFb;
-    private FrameBuffer normalFb;   
-    private CellView[] cellViews = new CellView[8];
+    private AtlasLayout layout = AtlasLayout.DEFAULT;
+    private boolean layoutChanged;
+    
+    // The layouts that the current views, the pending readback, and
+    // the image processing were done with.  The impostor material only
+    // switches layouts when the images rendered with it are swapped in.
+    private AtlasLayout viewLayout;
+    private AtlasLayout readbackLayout;
+    private AtlasLayout processingLayout;
+    private DirectionalLight sun;
+    private AmbientLight ambient;
+    private FrameBuffer atlasFb;
+    private CellView[] cellViews;
     private Image diffuseMap;
     private Texture2D diffuseTexture;    
     private Image normalMap;
     private Texture2D normalTexture;
-    private int needTextureUpdate;    
+    private FrameBufferReader diffuseReader = new FrameBufferReader();
+    private FrameBufferReader normalReader = new FrameBufferReader();
+    private boolean renderPending;
+    private boolean readbackPending;
+    private ByteBuffer diffuseRaw;
+    private ByteBuffer normalRaw;
+    private int readbackWidth;
+    private int readbackHeight;
+    private int processingThreads;
+    private ForkJoinPool pool;
+    private AtlasPostProcessor postProcessor;
+    private AtlasPostProcessor.Job processing;
+    private VersionedHolder<Image> atlas = new VersionedHolder<Image>();
+
+    private static final int DIFFUSE_TARGET = 0;
+    private static final int NORMAL_TARGET = 1;
 
     private BitmapFont font;
     
@@ -113,8 +155,66 @@ public class AtlasGeneratorState extends BaseAppState {
     private boolean useNormalMaps = true;
 
     public AtlasGeneratorState() {
+        this(1);
+    }
+ 
+    /**
+     *  Creates an atlas generator that post-processes the atlas images
+     *  with the specified number of threads.
+     */   
+    public AtlasGeneratorState( int processingThreads ) {
+        this.processingThreads = Math.max(1, processingThreads);
+    }
+ 
+    /**
+     *  Sets the cell size and view angles of the generated atlas.  The
+     *  atlas is regenerated with the new layout on the next update.
+     *  Layouts that the impostor material can't display are ignored.
+     */   
+    public void setAtlasLayout( AtlasLayout layout ) {
+        if( this.layout.equals(layout) ) {
+            return;
+        }
+        if( isInitialized() && !layout.isSupportedBy(getImpostorMaterial()) ) {
+            log.warn("Impostor material does not support atlas layout:" + layout);
+            return;
+        }
+        this.layout = layout;
+        this.layoutChanged = true;
+    }
+    
+    public AtlasLayout getAtlasLayout() {
+        return layout;
+    }
+ 
+    public void setCellSize( int cellSize ) {
+        setAtlasLayout(new AtlasLayout(cellSize, layout.getAngleCount(), layout.hasTopDown()));
+    }
+    
+    public int getCellSize() {
+        return layout.getCellSize();
+    }
+    
+    public void setAngleCount( int angleCount ) {
+        setAtlasLayout(new AtlasLayout(layout.getCellSize(), angleCount, layout.hasTopDown()));
+    }
+    
+    public int getAngleCount() {
+        return layout.getAngleCount();
+    }
+    
+    public void setTopDown( boolean topDown ) {
+        setAtlasLayout(new AtlasLayout(layout.getCellSize(), layout.getAngleCount(), topDown));
+    }
+    
+    public boolean isTopDown() {
+        return layout.hasTopDown();
     }
     
+    protected Material getImpostorMaterial() {
+        return getState(ForestGridState.class).getImpostorMaterial();
+    }
+ 
     public Image getDiffuseMap() {
         return diffuseMap;
     }
@@ -127,71 +227,218 @@ public class AtlasGeneratorState extends BaseAppState {
         int width = fb.getWidth();
         int height = fb.getHeight();  
         int size = width * height * 4;
-        ByteBuffer buffer = BufferUtils.createByteBuffer(size);
-        Image.Format format = fb.getColorBuffer().getFormat();
-        
-        // I guess readFrameBuffer always writes in the same
-        // format regardless of the frame buffer format
-        format = Format.BGRA8;        
-        return new Image(format, width, height, buffer);            
+        ByteBuffer buffer = BufferPool.getInstance().acquireBytes(size);
+        return new Image(Format.RGBA8, width, height, buffer);            
     }
 
-    protected void updateTextures() {
-
-        Renderer renderer = getApplication().getRenderer();
+    /**
+     *  Makes sure that the atlas textures exist and are set on the
+     *  impostor material.  They start out with blank images until the
+     *  first atlas has been processed.
+     */   
+    protected void createImages() {
         if( diffuseMap == null ) {
-            diffuseMap = createFrameBufferImage(diffuseFb);
+            diffuseMap = createFrameBufferImage(atlasFb);
             diffuseTexture = new Texture2D(diffuseMap);
-            getState(ForestGridState.class).getImpostorMaterial().setTexture("DiffuseMap", diffuseTexture);       
+            
+            // Use the mip chain that comes with the processed images
+            diffuseTexture.setMinFilter(Texture.MinFilter.Trilinear);
+            getImpostorMaterial().setTexture("DiffuseMap", diffuseTexture);       
         }
-        renderer.readFrameBuffer(diffuseFb, diffuseMap.getData(0));
-        diffuseMap.setUpdateNeeded();
-        
         if( normalMap == null ) {
-            normalMap = createFrameBufferImage(normalFb);
+            normalMap = createFrameBufferImage(atlasFb);
             normalTexture = new Texture2D(normalMap);
+            normalTexture.setMinFilter(Texture.MinFilter.Trilinear);
             if( useNormalMaps ) {
-                getState(ForestGridState.class).getImpostorMaterial().setTexture("NormalMap", normalTexture);
+                getImpostorMaterial().setTexture("NormalMap", normalTexture);
             }       
         }        
-        renderer.readFrameBuffer(normalFb, normalMap.getData(0));
-        normalMap.setUpdateNeeded();
+        getState(ForestGridState.class).getMaterials().markChanged();
+    }
+ 
+    /**
+     *  Starts reading both frame buffer attachments back into raw
+     *  buffers.  Called after the cell views have rendered.
+     */   
+    protected void requestReadback() {
+        readbackWidth = atlasFb.getWidth();
+        readbackHeight = atlasFb.getHeight();
+        readbackLayout = viewLayout;
+        int size = readbackWidth * readbackHeight * 4;
+ 
+        // A readback that is still pending is superseded by this one
+        // so its buffers can be used again if they're the right size.
+        // Otherwise they come from the post-processor, which gets them
+        // back to the pool when it is done with them. 
+        diffuseRaw = acquireRaw(diffuseRaw, size);
+        normalRaw = acquireRaw(normalRaw, size);
         
-        needTextureUpdate = 0;       
+        Renderer renderer = getApplication().getRenderer();
+        diffuseReader.request(renderer, atlasFb, DIFFUSE_TARGET, diffuseRaw);
+        normalReader.request(renderer, atlasFb, NORMAL_TARGET, normalRaw);
+        readbackPending = true;
     }
-
+ 
+    private ByteBuffer acquireRaw( ByteBuffer last, int size ) {
+        if( last != null && last.limit() == size ) {
+            return last;
+        }
+        BufferPool pool = BufferPool.getInstance();
+        pool.release(last);
+        return pool.acquireBytes(size);
+    }
+ 
+    /**
+     *  Checks to see if both readbacks have finished and, if so, hands
+     *  the raw pixels off to the post-processor.
+     */   
+    protected void pollReadback() {
+        if( !readbackPending ) {
+            return;
+        }
+        // Poll both so that they each get copied as soon as they can
+        boolean diffuseDone = diffuseReader.poll();
+        boolean normalDone = normalReader.poll();
+        if( !diffuseDone || !normalDone ) {
+            return;
+        }
+        readbackPending = false;
+        
+        if( processing != null ) {
+            // Superseded by the newer atlas.  It stops at the next
+            // row or pass.
+            processing.cancel();
+        }
+        processing = postProcessor.process(diffuseRaw, normalRaw, readbackWidth, readbackHeight);
+        processingLayout = readbackLayout;
+        diffuseRaw = null;
+        normalRaw = null;
+    }
+ 
+    /**
+     *  Checks to see if the post-processor has finished and, if so, swaps
+     *  the new images into the atlas textures, switches the impostor 
+     *  material to the layout they were rendered with, and signals that 
+     *  a new atlas is available.
+     */   
+    protected void pollProcessing() {
+        if( processing == null || !processing.isDone() ) {
+            return;
+        }
+        AtlasPostProcessor.Job job = processing;
+        processing = null;
+        
+        AtlasImages images;
+        try {
+            images = job.get();
+        } catch( InterruptedException e ) {
+            throw new RuntimeException("Interrupted waiting for atlas", e);
+        } catch( ExecutionException e ) {
+            log.error("Error processing atlas images", e);
+            return;
+        }
+        if( images == null ) {
+            return;
+        }
+ 
+        createImages();
+        diffuseMap = replaceImage(diffuseTexture, diffuseMap, images.getDiffuse());
+        normalMap = replaceImage(normalTexture, normalMap, images.getNormal());
+        getState(ForestGridState.class).getMaterials().setAtlasLayout(processingLayout);
+        atlas.setObject(diffuseMap);
+    }
+ 
+    protected Image replaceImage( Texture2D texture, Image oldImage, Image newImage ) {
+        texture.setImage(newImage);
+        getApplication().getRenderer().deleteImage(oldImage);
+        
+        // The old image's data can hold the next atlas of the same size
+        BufferPool.getInstance().release(oldImage.getData(0));
+        return newImage;
+    }
+ 
+    /**
+     *  Returns a reference that is updated every time a newly generated
+     *  atlas has been processed into the diffuse and normal map images.
+     */   
+    public VersionedReference<Image> getAtlasRef() {
+        return atlas.createReference();
+    }
+ 
+    /**
+     *  Returns true if any of the levels of detail in the specified
+     *  parameters use the Impostor reduction.
+     */
+    protected boolean usesImpostors( TreeParameters treeParameters ) {
+        for( int i = 0; i < treeParameters.getLodCount(); i++ ) {
+            if( treeParameters.getLod(i).reduction == ReductionType.Impostor ) {
+                return true;
+            }
+        }
+        return false;
+    }
+ 
     @Override
     protected void initialize( Application app ) {
  
-        this.treeParametersRef = getState(TreeParametersState.class).getTreeParametersRef();
+        this.treeParametersRef = getState(TreeParametersState.class).getTreeParametersRef(TreeStage.Impostor);
+        this.lodParametersRef = getState(TreeParametersState.class).getTreeParametersRef(TreeStage.LodSwitch);
+        this.impostorsUsed = usesImpostors(lodParametersRef.get());
+        this.skeletons = getState(TreeParametersState.class).getSkeletonCache();
         this.treeMaterial = getState(ForestGridState.class).getTreeMaterial();
         this.leafMaterial = getState(ForestGridState.class).getLeafMaterial();
  
         this.builder = getState(BuilderState.class).getBuilder();
         this.builderRef = new AtlasTreeBuilderReference();
         
+        // Sized explicitly so that post-processing doesn't compete with
+        // the builder threads for every core
+        this.pool = new ForkJoinPool(processingThreads);
+        this.postProcessor = new AtlasPostProcessor(pool);
+        
  
         this.font = GuiGlobals.getInstance().loadFont("Interface/Fonts/Default.fnt");
+ 
+        sun = new DirectionalLight();
+        //sun.setDirection(new Vector3f(0, -1f, -1).normalizeLocal());
+        sun.setDirection(new Vector3f(0, 0, -1).normalizeLocal());
+ 
+        ambient = new AmbientLight();
+
+        if( useNormalMaps ) {
+            sun.setColor(new ColorRGBA(0.5f, 0.5f, 0.5f, 1));
+            ambient.setColor(new ColorRGBA(0.5f, 0.5f, 0.5f, 1));
+        } else {
+            sun.setColor(new ColorRGBA(1, 1, 1, 1));
+            ambient.setColor(new ColorRGBA(0.25f, 0.25f, 0.25f, 1));            
+        }
+ 
+        // The views themselves are created the first time an
+        // atlas is needed.  A layout set before we were initialized
+        // might not work with the impostor material.
+        if( !layout.isSupportedBy(getImpostorMaterial()) ) {
+            log.warn("Impostor material does not support atlas layout:" + layout);
+            layout = new AtlasLayout(layout.getCellSize(), AtlasLayout.DEFAULT.getAngleCount(), 
+                                     AtlasLayout.DEFAULT.hasTopDown());
+        }
         
-        Camera camera = app.getCamera().clone();   
-        camera.resize(256, 256, true);
-        camera.resize(1024, 256, false); 
-  
- 
-        FrameBuffer fb1 = new FrameBuffer(1024, 256, 1);
-        diffuseFb = fb1;
-        Texture2D fbTex1 = new Texture2D(1024, 256, Format.RGBA8);
-        fb1.setDepthBuffer(Format.Depth);
-        fb1.setColorTexture(fbTex1);        
-    
-        FrameBuffer fb2 = new FrameBuffer(1024, 256, 1);
-        normalFb = fb2;
-        Texture2D fbTex2 = new Texture2D(1024, 256, Format.RGBA8);
-        fb2.setDepthBuffer(Format.Depth);
-        fb2.setColorTexture(fbTex2); 
-        
+        // Let the atlas layout be edited along with the rest of
+        // the parameters.  The angles can only be changed if the
+        // impostor shader knows how to find the cells.
+        PropertyPanel properties = new PropertyPanel("glass");
+        getState(TreeOptionsState.class).getParameterTabs().addTab("Atlas", properties);
+        properties.addIntProperty("Cell Size", this, "cellSize", 64, 1024, 64);
+        if( AtlasLayout.hasLayoutParameters(getImpostorMaterial()) ) {
+            properties.addIntProperty("View Angles", this, "angleCount", 1, 16, 1);
+            properties.addBooleanProperty("Top-Down Cell", this, "topDown");
+        }
  
-        if( debugTextures ) {       
+        if( debugTextures ) {
+            createViews();
+            
+            Texture fbTex1 = atlasFb.getColorBuffer(DIFFUSE_TARGET).getTexture();
+            Texture fbTex2 = atlasFb.getColorBuffer(NORMAL_TARGET).getTexture();
+                   
             Quad testQuad = new Quad(512, 128);
             Geometry testGeom = new Geometry("test", testQuad);
             Material mat = GuiGlobals.getInstance().createMaterial(fbTex1, false).getMaterial();
@@ -205,7 +452,7 @@ public class AtlasGeneratorState extends BaseAppState {
             testGeom.setMaterial(mat);
             ((TreeEditor)app).getGuiNode().attachChild(testGeom);
             
-            updateTextures();
+            createImages();
             
             testQuad = new Quad(512, 128);
             testGeom = new Geometry("test", testQuad);
@@ -221,41 +468,102 @@ public class AtlasGeneratorState extends BaseAppState {
             testGeom.setMaterial(mat);
             ((TreeEditor)app).getGuiNode().attachChild(testGeom);
         }
+    }
  
-        DirectionalLight sun = new DirectionalLight();
-        //sun.setDirection(new Vector3f(0, -1f, -1).normalizeLocal());
-        sun.setDirection(new Vector3f(0, 0, -1).normalizeLocal());
+    /**
+     *  Creates the frame buffer and the view of each cell for the 
+     *  current layout.  The views start out disabled unless there is 
+     *  already a tree to render.
+     */   
+    protected void createViews() {
+        int width = layout.getWidth();
+        int height = layout.getHeight();
+        
+        Camera camera = getApplication().getCamera().clone();   
+        camera.resize(height, height, true);
+        camera.resize(width, height, false); 
  
-        AmbientLight ambient = new AmbientLight();
-
-        if( useNormalMaps ) {
-            sun.setColor(new ColorRGBA(0.5f, 0.5f, 0.5f, 1));
-            ambient.setColor(new ColorRGBA(0.5f, 0.5f, 0.5f, 1));
-        } else {
-            sun.setColor(new ColorRGBA(1, 1, 1, 1));
-            ambient.setColor(new ColorRGBA(0.25f, 0.25f, 0.25f, 1));            
-        }
+        // One frame buffer with the diffuse and normal maps as separate
+        // color attachments.  Each cell is culled and queued once and the
+        // queue is drawn into both.
+        atlasFb = new FrameBuffer(width, height, 1);
+        atlasFb.setDepthBuffer(Format.Depth);
+        atlasFb.addColorTexture(new Texture2D(width, height, Format.RGBA8));
+        atlasFb.addColorTexture(new Texture2D(width, height, Format.RGBA8));
+        viewLayout = layout;
  
-        //-x * FastMath.TWO_PI - FastMath.QUARTER_PI
-        // The texture quads actually run a, c, d, b starting with
-        // the +, + quadrant
-        cellViews[0] = new CellView(fb1, camera, sun, ambient, FastMath.QUARTER_PI, 0.25f * 0);
-        cellViews[1] = new CellView(fb1, camera, sun, ambient, -FastMath.QUARTER_PI, 0.25f * 1);
-        cellViews[2] = new CellView(fb1, camera, sun, ambient, FastMath.PI - FastMath.QUARTER_PI, 0.25f * 2);
-        cellViews[3] = new CellView(fb1, camera, sun, ambient, FastMath.PI + FastMath.QUARTER_PI, 0.25f * 3);
-        
-        cellViews[4] = new NormalMapCellView(fb2, camera, sun, ambient, FastMath.QUARTER_PI, 0.25f * 0);
-        cellViews[5] = new NormalMapCellView(fb2, camera, sun, ambient, -FastMath.QUARTER_PI, 0.25f * 1);
-        cellViews[6] = new NormalMapCellView(fb2, camera, sun, ambient, FastMath.PI - FastMath.QUARTER_PI, 0.25f * 2);
-        cellViews[7] = new NormalMapCellView(fb2, camera, sun, ambient, FastMath.PI + FastMath.QUARTER_PI, 0.25f * 3);
+        int count = layout.getCellCount();
+        float cellWidth = 1f / count;
+        cellViews = new CellView[count];
+        for( int i = 0; i < count; i++ ) {
+            boolean top = i == layout.getTopDownCell();
+            float angle = top ? 0 : layout.getAngle(i);
+            float x = layout.getCellOffset(i);
+            cellViews[i] = new CellView(atlasFb, camera, angle, x, cellWidth, top);
+        }
         
+        if( trunkMesh != null ) {
+            for( CellView view : cellViews ) {
+                view.updateMesh(trunkMesh, leafMesh, trunkBounds, leafBounds);
+            }
+            renderPending = true;
+        }
+        setViewsEnabled(renderPending);
+    }
+ 
+    /**
+     *  Turns rendering of the cell views on or off.  They only need to 
+     *  render for the frame that a new tree arrives.
+     */   
+    protected void setViewsEnabled( boolean enabled ) {
+        if( cellViews == null ) {
+            return;
+        }
+        for( CellView view : cellViews ) {
+            view.getViewPort().setEnabled(enabled);
+        }
+    }
+    
+    protected void releaseViews() {
+        if( cellViews == null ) {
+            return;
+        }
+        for( CellView view : cellViews ) {
+            getApplication().getRenderManager().removeMainView(view.getViewPort());
+        }
+        cellViews = null;
+ 
+        // Any readback has already been copied out of the frame buffer
+        // so it can go
+        Renderer renderer = getApplication().getRenderer();
+        renderer.deleteFrameBuffer(atlasFb);
+        for( int i = 0; i < atlasFb.getNumColorBuffers(); i++ ) {
+            renderer.deleteImage(atlasFb.getColorBuffer(i).getTexture().getImage());
+        }
+        atlasFb = null;
+        viewLayout = null;
+    }
+ 
+    /**
+     *  Recreates the views and frame buffer for a new layout if they
+     *  have been created yet.  The atlas images and the impostor 
+     *  material's layout are replaced once the next atlas has been 
+     *  processed.
+     */   
+    protected void refreshLayout() {
+        layoutChanged = false;
+        if( cellViews != null ) {
+            releaseViews();
+            createViews();
+        }
     }
 
     @Override
     protected void cleanup( Application app ) {
-        for( CellView view : cellViews ) {
-            app.getRenderManager().removeMainView(view.getViewPort());
-        }
+        releaseViews();
+        diffuseReader.release();
+        normalReader.release();
+        pool.shutdownNow();
     }
 
     @Override
@@ -266,7 +574,8 @@ public class AtlasGeneratorState extends BaseAppState {
     protected void disable() {
     }
 
-    protected void updateTree( Mesh trunkMesh, Mesh leafMesh ) {
+    protected void updateTree( Mesh trunkMesh, Mesh leafMesh, 
+                               BoundingBox trunkBounds, BoundingBox leafBounds ) {
         if( this.trunkMesh == trunkMesh ) {
             return;
         }
@@ -275,20 +584,21 @@ public class AtlasGeneratorState extends BaseAppState {
         releaseMesh(this.leafMesh);
         this.trunkMesh = trunkMesh;
         this.leafMesh = leafMesh;
+        this.trunkBounds = trunkBounds;
+        this.leafBounds = leafBounds;
         
+        if( cellViews == null ) {
+            return;
+        }
         for( CellView view : cellViews ) {
-            if( view != null ) {
-                view.updateMesh(trunkMesh, leafMesh);
-            }
+            view.updateMesh(trunkMesh, leafMesh, trunkBounds, leafBounds);
         }
  
-        // Texture updates need to happen one frame late...
-        // but we get the notification that we need the check
-        // early in _this_ frame.  ie: updateTree() is called
-        // before our update(), render().  If we want to render
-        // a frame later then we need to skip this frame before
-        // updating textures.
-        needTextureUpdate = 2;       
+        // updateTree() is called before our render() so the views
+        // will draw the new tree this frame and can be read back
+        // in postRender().
+        renderPending = true;
+        setViewsEnabled(true);       
     }
 
     protected void releaseMesh( Mesh mesh ) {
@@ -296,13 +606,7 @@ public class AtlasGeneratorState extends BaseAppState {
             return;
         }
  
-        // Delete the old buffers
-        for( VertexBuffer vb : mesh.getBufferList() ) {
-            if( log.isTraceEnabled() ) {
-                log.trace("--destroying buffer:" + vb);
-            }
-            BufferUtils.destroyDirectBuffer( vb.getData() );
-        }                            
+        TreeMeshes.releaseMesh(mesh);
     }        
 
     private float nextUpdateCheck = 0.1f;
@@ -316,36 +620,56 @@ public class AtlasGeneratorState extends BaseAppState {
             return;
         }
         nextUpdateCheck = 0;
+ 
+        if( layoutChanged ) {
+            refreshLayout();
+        }
 
-        boolean changed = treeParametersRef.update();
-        if( changed ) {
+        if( treeParametersRef.update() ) {
+            atlasStale = true;
+        }
+        if( lodParametersRef.update() ) {
+            impostorsUsed = usesImpostors(lodParametersRef.get());
+        }
+        
+        if( impostorsUsed && atlasStale ) {
+            atlasStale = false;
+            if( cellViews == null ) {
+                createViews();
+            }
+            builderRef.skeleton = TreeSkeletonCache.snapshot(treeParametersRef.get());
             builder.build(builderRef);
         }
     }
 
     @Override
     public void render( RenderManager rm ) {
-        if( cellViews != null ) {
+        if( cellViews != null && renderPending ) {
             // We update the logical state here because it is
             // done after the other updates.  So if another app
             // state or control has modified our root then we
             // are guaranteed to run after.
             for( CellView view : cellViews ) {
-                if( view != null ) {
-                    view.update(lastTpf);
-                }               
+                view.update(lastTpf);
             }
         }
  
-        // Texture updates need to happen one frame later...
-        // but we get the notification that we need the check
-        // early in _this_ frame.
-        if( needTextureUpdate > 0 ) {
-            needTextureUpdate--;
-            if( needTextureUpdate == 0 ) {
-                updateTextures();
-            }
-        }       
+        // Pick up any readback that the GPU has finished and
+        // any images that are done processing
+        pollReadback();
+        pollProcessing();
+    }
+ 
+    @Override
+    public void postRender() {
+        // The cell views have been rendered by now
+        if( renderPending ) {
+            renderPending = false;
+            requestReadback();
+            
+            // Nothing more to draw until the next tree arrives
+            setViewsEnabled(false);
+        }
     }
 
     private class CellView {
@@ -353,22 +677,30 @@ public class AtlasGeneratorState extends BaseAppState {
         private Camera camera;
         private Node root;
         private Mesh leafMesh;
+        private BoundingBox trunkBounds;
+        private BoundingBox leafBounds;
         private Mesh trunkMesh;
         private Geometry trunkGeom;
         private Geometry leafGeom;
         private Geometry wireBounds;
         private boolean debugBounds = false;
         private boolean debugCell = false;
+        private boolean topDown;
         
-        public CellView( FrameBuffer fb, Camera templateCamera, DirectionalLight sun, AmbientLight ambient, float angle, float x ) {
+        public CellView( FrameBuffer fb, Camera templateCamera,  
+                         float angle, float x, float width, boolean topDown ) {
         
             this.camera = templateCamera.clone();
-            camera.setViewPort(x, x + 0.25f, 0, 1);
+            this.topDown = topDown;
+            camera.setViewPort(x, x + width, 0, 1);
             
             this.root = new Node("CellRoot:" + x );
             this.viewport = getApplication().getRenderManager().createMainView("AtlasCell[" + x + "]", camera);
             this.viewport.setOutputFrameBuffer(fb);
+            this.viewport.addProcessor(new NormalPass());
             this.root.rotate(0, -angle, 0);
+            root.addLight(sun);
+            root.addLight(ambient);
  
             if( debugCell ) {
                 BitmapText label = new BitmapText(font);
@@ -381,12 +713,14 @@ public class AtlasGeneratorState extends BaseAppState {
             }
             
             viewport.attachScene(root);
-            root.addLight(sun);
-            root.addLight(ambient);
             
             viewport.setClearFlags(true, true, true);
             viewport.setBackgroundColor(new ColorRGBA(0, 0, 0, 0));
-            this.camera.lookAtDirection(new Vector3f(0, 0, -1), Vector3f.UNIT_Y);
+            if( topDown ) {
+                this.camera.lookAtDirection(new Vector3f(0, -1, 0), new Vector3f(0, 0, -1));
+            } else {
+                this.camera.lookAtDirection(new Vector3f(0, 0, -1), Vector3f.UNIT_Y);
+            }
         }
 
         public ViewPort getViewPort() {
@@ -398,19 +732,12 @@ public class AtlasGeneratorState extends BaseAppState {
             root.updateGeometricState();
         }
 
-        protected Material getTreeMaterial() {
-            return treeMaterial;
-        }
- 
-        protected Material getLeafMaterial() {
-            return leafMaterial;       
-        }            
-
-        public void updateMesh( Mesh trunkMesh, Mesh leafMesh ) {
+        public void updateMesh( Mesh trunkMesh, Mesh leafMesh, 
+                                BoundingBox trunkBounds, BoundingBox leafBounds ) {
             if( trunkGeom == null ) {
                 // Create it
                 trunkGeom = new Geometry("Trunk", trunkMesh);
-                trunkGeom.setMaterial(getTreeMaterial());
+                trunkGeom.setMaterial(treeMaterial);
                 root.attachChild(trunkGeom);
             } else {
                 // Just swap out the mesh
@@ -418,6 +745,8 @@ public class AtlasGeneratorState extends BaseAppState {
             }
             this.trunkMesh = trunkMesh;
             this.leafMesh = leafMesh;
+            this.trunkBounds = trunkBounds;
+            this.leafBounds = leafBounds;
             if( leafMesh == null ) {
                 if( leafGeom != null ) {
                     leafGeom.removeFromParent();
@@ -427,7 +756,7 @@ public class AtlasGeneratorState extends BaseAppState {
                 if( leafGeom == null ) {
                     // Create it
                     leafGeom = new Geometry("Leaves", leafMesh);
-                    leafGeom.setMaterial(getLeafMaterial());
+                    leafGeom.setMaterial(leafMaterial);
                     leafGeom.setQueueBucket(Bucket.Transparent);  
                     root.attachChild(leafGeom); 
                 } else {
@@ -440,10 +769,11 @@ public class AtlasGeneratorState extends BaseAppState {
         
         protected void updateCamera() {
  
-            BoundingBox bb = (BoundingBox)trunkMesh.getBound();
-            if( leafGeom != null ) {
-                BoundingBox bb2 = (BoundingBox)leafMesh.getBound();
-                bb = (BoundingBox)bb.merge(bb2);
+            // The bounds come from the same skeleton walk as the
+            // impostor sizing in TreeMeshes so that they line up.
+            BoundingBox bb = trunkBounds;
+            if( leafGeom != null && leafBounds != null ) {
+                bb = (BoundingBox)bb.merge(leafBounds);
             }
             
             Vector3f min = bb.getMin(null);
@@ -478,10 +808,17 @@ public class AtlasGeneratorState extends BaseAppState {
         
             Vector3f center = bb.getCenter();
  
-            float sizeOffset = size - (ySize*0.5f); 
+            if( topDown ) {
+                // Looking straight down only the x,z spread matters
+                // and we back off from the top of the tree.
+                float topSize = Math.max(xSize, zSize);
+                camera.setLocation(new Vector3f(0, max.y + m11 * topSize, 0));
+            } else {
+                float sizeOffset = size - (ySize*0.5f); 
  
-            Vector3f camLoc = new Vector3f(0, center.y + sizeOffset, z); 
-            camera.setLocation(camLoc);
+                Vector3f camLoc = new Vector3f(0, center.y + sizeOffset, z); 
+                camera.setLocation(camLoc);
+            }
  
             if( debugBounds ) {       
                 WireBox box;        
@@ -500,35 +837,97 @@ public class AtlasGeneratorState extends BaseAppState {
                 wireBounds.setLocalRotation(leafGeom.getLocalRotation());
             }        
         }
+ 
+        /**
+         *  Draws the cell's queue into the normal map target with the 
+         *  materials' own PreNormalPass technique before the regular
+         *  flush draws it into the diffuse target.  The scene is only
+         *  culled and sorted once for both.
+         */
+        private class NormalPass implements SceneProcessor {
+            private RenderManager rm;
+            
+            @Override
+            public void initialize( RenderManager rm, ViewPort vp ) {
+                this.rm = rm;
+            }
 
-    }
+            @Override
+            public void reshape( ViewPort vp, int w, int h ) {
+            }
 
+            @Override
+            public boolean isInitialized() {
+                return rm != null;
+            }
 
-    private class NormalMapCellView extends CellView { 
-        public NormalMapCellView( FrameBuffer fb, Camera templateCamera, DirectionalLight sun, AmbientLight ambient, float angle, float x ) {
-            super(fb, templateCamera, sun, ambient, angle, x); 
-        }
+            @Override
+            public void preFrame( float tpf ) {
+            }
 
-        @Override
-        protected Material getTreeMaterial() {
-            Material normalMaterial = treeMaterial.clone();
-            normalMaterial.selectTechnique("PreNormalPass", getApplication().getRenderManager());
-            return normalMaterial;
+            @Override
+            public void postQueue( RenderQueue rq ) {
+                Renderer renderer = rm.getRenderer();
+                FrameBuffer fb = viewport.getOutputFrameBuffer();
+                
+                // The view has already cleared its cell in the diffuse
+                // target so the normal target needs its own clear.
+                selectTarget(renderer, fb, NORMAL_TARGET);
+                renderer.clearBuffers(true, true, false);
+                
+                String lastTechnique = rm.getForcedTechnique();
+                rm.setForcedTechnique("PreNormalPass");
+                try {
+                    rm.renderViewPortQueues(viewport, false);
+                } finally {
+                    rm.setForcedTechnique(lastTechnique);
+                }
+                
+                // Back to the diffuse target with a fresh depth buffer
+                // for the regular flush
+                selectTarget(renderer, fb, DIFFUSE_TARGET);
+                renderer.clearBuffers(false, true, false);
+            }
+            
+            private void selectTarget( Renderer renderer, FrameBuffer fb, int target ) {
+                // The renderer skips binding a frame buffer that is 
+                // already bound unless it's flagged for update.
+                fb.setTargetIndex(target);
+                fb.setUpdateNeeded();
+                renderer.setFrameBuffer(fb);
+                
+                // Binding can reset the viewport so put the cell back 
+                int x = (int)(camera.getViewPortLeft() * camera.getWidth());
+                int y = (int)(camera.getViewPortBottom() * camera.getHeight());
+                int w = (int)((camera.getViewPortRight() - camera.getViewPortLeft()) * camera.getWidth());
+                int h = (int)((camera.getViewPortTop() - camera.getViewPortBottom()) * camera.getHeight());
+                renderer.setViewPort(x, y, w, h);
+                renderer.setClipRect(x, y, w, h);
+            }
+
+            @Override
+            public void postFrame( FrameBuffer out ) {
+            }
+
+            @Override
+            public void cleanup() {
+                rm = null;
+            }
+            
+            public void setProfiler( AppProfiler profiler ) {
+            }
         }
- 
-        @Override
-        protected Material getLeafMaterial() {
-            Material normalMaterial = leafMaterial.clone();
-            normalMaterial.selectTechnique("PreNormalPass", getApplication().getRenderManager());
-            return normalMaterial;
-        }            
     }
- 
+
 
     private class AtlasTreeBuilderReference implements BuilderReference {
 
-        private Mesh trunkMesh;
-        private Mesh leafMesh;        
+        // The trunk and leaf meshes are published together so that 
+        // builds running in parallel with an apply can't mix them up.
+        private final AtomicReference<AtlasTree> pending = new AtomicReference<AtlasTree>();
+        
+        // Taken on the render thread when the build is queued
+        private volatile TreeSkeletonCache.Snapshot skeleton;
 
         @Override
         public int getPriority() {
@@ -539,38 +938,71 @@ public class AtlasGeneratorState extends BaseAppState {
         @Override
         public void build() {
 
-            TreeParameters treeParameters = treeParametersRef.get();
+            // Everything is built from the copy taken when the build
+            // was queued rather than the live parameters
+            TreeSkeletonCache.Snapshot skeleton = this.skeleton;
+            TreeParameters treeParameters = skeleton.getParameters();
             
-            TreeGenerator treeGen = new TreeGenerator();        
-            Tree tree = treeGen.generateTree(treeParameters);
+            // The atlas renders the base seed tree which is the same
+            // skeleton that the first grid cell uses.
+            Tree tree = skeletons.getTree(treeParameters.getSeed(), skeleton);
             
             SkinnedTreeMeshGenerator meshGen = new SkinnedTreeMeshGenerator();
         
             List<Vertex> tips = new ArrayList<Vertex>();
-            trunkMesh = meshGen.generateMesh(tree,
-                                             treeParameters.getLod(0),
-                                             treeParameters.getYOffset(), 
-                                             treeParameters.getTextureURepeat(),
-                                             treeParameters.getTextureVScale(),
-                                             tips);
-
+            Mesh trunkMesh = meshGen.generateMesh(tree,
+                                                  treeParameters.getLod(0),
+                                                  treeParameters.getYOffset(), 
+                                                  treeParameters.getTextureURepeat(),
+                                                  treeParameters.getTextureVScale(),
+                                                  tips);
+
+            TreeBounds bounds = TreeBounds.calculate(tree, treeParameters.getYOffset());
+            AtlasTree result = new AtlasTree();
+            result.trunkMesh = trunkMesh;
+            result.trunkBounds = bounds.getTrunkBounds();
             if( treeParameters.getGenerateLeaves() ) {
                 BillboardedLeavesMeshGenerator leafGen = new BillboardedLeavesMeshGenerator();
-                leafMesh = leafGen.generateMesh(tips, treeParameters.getLeafScale());
-            } else {
-                leafMesh = null;
+                Mesh leaves = leafGen.generateMesh(tips, treeParameters.getLeafScale());
+                result.leafMesh = leaves;
+                result.leafBounds = bounds.getTipBounds();
+            }
+            
+            AtlasTree last = pending.getAndSet(result);
+            if( last != null ) {
+                // Superseded before it was ever applied
+                last.release();
             }            
         }
 
         @Override
         public void apply( Builder builder ) {
+            AtlasTree tree = pending.getAndSet(null);
+            if( tree == null ) {
+                return;
+            }
             // Set the new trunk
-            updateTree(trunkMesh, leafMesh);               
+            updateTree(tree.trunkMesh, tree.leafMesh, tree.trunkBounds, tree.leafBounds);               
         }
 
         @Override
         public void release( Builder builder ) {
-            
+            AtlasTree tree = pending.getAndSet(null);
+            if( tree != null ) {
+                tree.release();
+            }
         }        
     }
+    
+    private class AtlasTree {
+        Mesh trunkMesh;
+        Mesh leafMesh;
+        BoundingBox trunkBounds;
+        BoundingBox leafBounds;
+        
+        public void release() {
+            releaseMesh(trunkMesh);
+            releaseMesh(leafMesh);
+        }
+    }
 }
@@ -0,0 +1,211 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+ 
+package com.simsilica.arboreal;
+
+import com.jme3.material.Material;
+import com.jme3.material.MaterialDef;
+import com.jme3.math.FastMath;
+
+
+/**
+ *  Describes how the impostor atlas is laid out: a single row of
+ *  square cells, one for each view angle around the tree plus an
+ *  optional cell looking straight down from above.  The default 
+ *  layout is four 256x256 cells at the quarter angles which is what 
+ *  the stock IndexedBillboardLighting shader expects.  Other layouts
+ *  require an impostor material that declares the layout parameters.
+ *
+ *  @author    Paul Speed
+ */
+public class AtlasLayout {
+ 
+    /**
+     *  Optional impostor material parameters that are set from the
+     *  layout when the material definition declares them.
+     */   
+    public static final String PARAM_CELL_COUNT = "AtlasCellCount";
+    public static final String PARAM_ANGLE_COUNT = "AtlasAngleCount";
+    public static final String PARAM_TOP_DOWN = "AtlasTopDown";
+ 
+    public static final AtlasLayout DEFAULT = new AtlasLayout(256, 4, false);
+ 
+    private final int cellSize;
+    private final int angleCount;
+    private final boolean topDown;
+    
+    public AtlasLayout( int cellSize, int angleCount, boolean topDown ) {
+        if( cellSize <= 0 ) {
+            throw new IllegalArgumentException("Invalid cell size:" + cellSize);
+        }
+        if( angleCount <= 0 ) {
+            throw new IllegalArgumentException("Invalid angle count:" + angleCount);
+        }
+        this.cellSize = cellSize;
+        this.angleCount = angleCount;
+        this.topDown = topDown;
+    }
+ 
+    public int getCellSize() {
+        return cellSize;
+    }
+    
+    public int getAngleCount() {
+        return angleCount;
+    }
+    
+    public boolean hasTopDown() {
+        return topDown;
+    }
+ 
+    /**
+     *  Returns the total number of cells including the top-down cell
+     *  if there is one.
+     */   
+    public int getCellCount() {
+        return topDown ? angleCount + 1 : angleCount;
+    }
+    
+    public int getWidth() {
+        return cellSize * getCellCount();
+    }
+    
+    public int getHeight() {
+        return cellSize;
+    }
+ 
+    /**
+     *  Returns the left edge of the specified cell as a fraction of
+     *  the atlas width.
+     */   
+    public float getCellOffset( int cell ) {
+        return (float)cell / getCellCount();
+    }
+ 
+    /**
+     *  Returns the index of the top-down cell or -1 if there isn't one.
+     *  It always comes after all of the angle cells.
+     */   
+    public int getTopDownCell() {
+        return topDown ? angleCount : -1;
+    }
+ 
+    /**
+     *  Returns the angle around the y axis that the tree is viewed from
+     *  for the specified angle cell.
+     */   
+    public float getAngle( int cell ) {
+        if( angleCount == 4 ) {
+            // The original layout.  The quads actually run a, c, d, b 
+            // starting with the +, + quadrant
+            switch( cell ) {
+                case 0:
+                    return FastMath.QUARTER_PI;
+                case 1:
+                    return -FastMath.QUARTER_PI;
+                case 2:
+                    return FastMath.PI - FastMath.QUARTER_PI;
+                default:
+                    return FastMath.PI + FastMath.QUARTER_PI;
+            }
+        }
+        return FastMath.QUARTER_PI - cell * FastMath.TWO_PI / angleCount;
+    }
+ 
+    /**
+     *  Returns true if the material's definition declares all of the
+     *  layout parameters and so can display any layout.
+     */
+    public static boolean hasLayoutParameters( Material material ) {
+        MaterialDef def = material.getMaterialDef();
+        return def.getMaterialParam(PARAM_CELL_COUNT) != null
+                && def.getMaterialParam(PARAM_ANGLE_COUNT) != null
+                && def.getMaterialParam(PARAM_TOP_DOWN) != null;
+    }
+ 
+    /**
+     *  Returns true if the specified impostor material can display 
+     *  atlases with this layout.  The cell size doesn't matter to the 
+     *  shader but anything other than the default angles needs the 
+     *  layout parameters.
+     */
+    public boolean isSupportedBy( Material material ) {
+        if( angleCount == DEFAULT.angleCount && topDown == DEFAULT.topDown ) {
+            return true;
+        }
+        return hasLayoutParameters(material);
+    }
+ 
+    /**
+     *  Sets any of the layout parameters that the material's definition
+     *  declares so that the shader can find the right cells.
+     */
+    public void apply( Material material ) {
+        if( material.getMaterialDef().getMaterialParam(PARAM_CELL_COUNT) != null ) {
+            material.setInt(PARAM_CELL_COUNT, getCellCount());
+        }
+        if( material.getMaterialDef().getMaterialParam(PARAM_ANGLE_COUNT) != null ) {
+            material.setInt(PARAM_ANGLE_COUNT, angleCount);
+        }
+        if( material.getMaterialDef().getMaterialParam(PARAM_TOP_DOWN) != null ) {
+            material.setBoolean(PARAM_TOP_DOWN, topDown);
+        }
+    }
+ 
+    @Override
+    public boolean equals( Object o ) {
+        if( o == this ) {
+            return true;
+        }
+        if( o == null || o.getClass() != getClass() ) {
+            return false;
+        }
+        AtlasLayout other = (AtlasLayout)o;
+        return cellSize == other.cellSize && angleCount == other.angleCount 
+                && topDown == other.topDown;
+    }
+    
+    @Override
+    public int hashCode() {
+        return 31 * (31 * cellSize + angleCount) + (topDown ? 1 : 0);
+    }
+ 
+    @Override
+    public String toString() {
+        return "AtlasLayout[cellSize=" + cellSize + ", angles=" + angleCount 
+                    + ", topDown=" + topDown + "]";
+    }
+}
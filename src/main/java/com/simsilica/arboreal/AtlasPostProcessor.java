@@ -0,0 +1,559 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal;
+
+import com.jme3.texture.Image;
+import com.jme3.texture.Image.Format;
+import com.jme3.util.BufferUtils;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ *  Turns the raw BGRA pixels read back from the atlas frame buffer into
+ *  the final diffuse and normal map images.  The pixels are converted
+ *  to RGBA8, the color of covered texels is dilated out into the
+ *  transparent texels around them so that black doesn't bleed into the
+ *  edges when filtered, and the full mip chain is generated so that the
+ *  GPU doesn't have to regenerate it on every upload.
+ *
+ *  <p>The work is split by rows across a ForkJoinPool.  Coverage is
+ *  always taken from the diffuse alpha since the normal map's alpha
+ *  may hold something else.</p>
+ *
+ *  <p>The raw and final image buffers come from the shared BufferPool
+ *  and the raw buffers go back to it once they've been converted so that 
+ *  regenerating an atlas of the same size doesn't allocate new direct 
+ *  memory.</p>
+ *
+ *  @author    Paul Speed
+ */
+public class AtlasPostProcessor {
+
+    static Logger log = LoggerFactory.getLogger(AtlasPostProcessor.class);
+
+    private static final int ROWS_PER_TASK = 16;
+
+    private final ForkJoinPool pool;
+    private int dilationPasses = 8;
+    
+    public AtlasPostProcessor( ForkJoinPool pool ) {
+        this.pool = pool;
+    }
+ 
+    /**
+     *  Sets how many texels out from the covered area that color is
+     *  dilated.  Each pass covers one more texel at the base level
+     *  which is half a texel at the next mip level, and so on.
+     */   
+    public void setDilationPasses( int dilationPasses ) {
+        this.dilationPasses = dilationPasses;
+    }
+    
+    public int getDilationPasses() {
+        return dilationPasses;
+    }
+ 
+    /**
+     *  Starts processing the raw BGRA diffuse and normal pixels on the
+     *  pool and returns the job that will produce the resulting images.
+     *  The raw buffers belong to the job from then on and are released
+     *  back to the BufferPool when it's done with them, even if it was
+     *  cancelled.
+     */   
+    public Job process( ByteBuffer diffuse, ByteBuffer normal, int width, int height ) {
+        ProcessTask task = new ProcessTask(diffuse, normal, width, height, dilationPasses);
+        pool.execute(task);
+        return new Job(task);
+    }
+ 
+    /**
+     *  Returns a copy of the base level of an RGBA8 image's data with
+     *  the red and blue swapped, ie: in the BGRA layout that the frame
+     *  buffer was originally read back in.
+     */   
+    public static ByteBuffer toBgra( Image image ) {
+        return toBgra(image, null);
+    }
+ 
+    /**
+     *  Like toBgra(Image) but writes into the specified store if it
+     *  is big enough.  Returns the buffer that was written.
+     */   
+    public static ByteBuffer toBgra( Image image, ByteBuffer store ) {
+        ByteBuffer source = image.getData(0);
+        int size = image.getWidth() * image.getHeight() * 4;
+        ByteBuffer result = store;
+        if( result == null || result.capacity() < size ) {
+            result = BufferUtils.createByteBuffer(size);
+        }
+        result.clear();
+        for( int i = 0; i < size; i += 4 ) {
+            result.put(source.get(i + 2));
+            result.put(source.get(i + 1));
+            result.put(source.get(i));
+            result.put(source.get(i + 3));
+        }
+        result.flip();
+        return result;
+    }
+
+    /**
+     *  A processing run that has been started on the pool.
+     */
+    public static class Job {
+        private final ProcessTask task;
+        
+        private Job( ProcessTask task ) {
+            this.task = task;
+        }
+ 
+        /**
+         *  Stops the run at the next row or pass.  get() will return 
+         *  null if it stopped early.
+         */       
+        public void cancel() {
+            task.cancelled = true;
+        }
+        
+        public boolean isDone() {
+            return task.isDone();
+        }
+        
+        public AtlasImages get() throws InterruptedException, ExecutionException {
+            return task.get();
+        }
+    }
+ 
+    /**
+     *  The diffuse and normal map images produced by a processing run.
+     */
+    public static class AtlasImages {
+        private final Image diffuse;
+        private final Image normal;
+        
+        public AtlasImages( Image diffuse, Image normal ) {
+            this.diffuse = diffuse;
+            this.normal = normal;
+        }
+        
+        public Image getDiffuse() {
+            return diffuse;
+        }
+        
+        public Image getNormal() {
+            return normal;
+        }
+    }
+ 
+    protected static int red( int rgba ) {
+        return (rgba >>> 24) & 0xff;
+    }
+    
+    protected static int green( int rgba ) {
+        return (rgba >>> 16) & 0xff;
+    }
+ 
+    protected static int blue( int rgba ) {
+        return (rgba >>> 8) & 0xff;
+    }
+ 
+    protected static int alpha( int rgba ) {
+        return rgba & 0xff;
+    }
+    
+    protected static int rgba( int r, int g, int b, int a ) {
+        return (r << 24) | (g << 16) | (b << 8) | a;
+    }
+ 
+    /**
+     *  Runs the whole pipeline for one atlas.  Each stage is parallel
+     *  over rows but the stages themselves run in order.  Cancelling 
+     *  stops it between rows and between passes.
+     */
+    private class ProcessTask extends RecursiveTask<AtlasImages> {
+        private final ByteBuffer diffuseSource;
+        private final ByteBuffer normalSource;
+        private final int width;
+        private final int height;
+        private final int dilationPasses;
+        private volatile boolean cancelled;
+        
+        public ProcessTask( ByteBuffer diffuseSource, ByteBuffer normalSource, 
+                            int width, int height, int dilationPasses ) {
+            this.diffuseSource = diffuseSource;
+            this.normalSource = normalSource;
+            this.width = width;
+            this.height = height;
+            this.dilationPasses = dilationPasses;
+        }
+        
+        @Override
+        protected AtlasImages compute() {
+            long start = System.nanoTime();
+ 
+            int size = width * height;
+            int[] diffuse = new int[size];
+            int[] normal = new int[size];
+            boolean[] covered = new boolean[size];
+            try {
+                forEachRow(height, new Convert(diffuseSource, diffuse, covered, width));
+                forEachRow(height, new Convert(normalSource, normal, null, width));
+            } finally {
+                // Done with the raw pixels either way
+                BufferPool.getInstance().release(diffuseSource);
+                BufferPool.getInstance().release(normalSource);
+            }
+ 
+            // Ping-pong between two sets of buffers, each pass
+            // pushing color one texel further out
+            int[] diffuseTemp = new int[size];
+            int[] normalTemp = new int[size];
+            boolean[] coveredTemp = new boolean[size];
+            for( int i = 0; i < dilationPasses; i++ ) {
+                if( cancelled ) {
+                    return null;
+                }
+                forEachRow(height, new Dilate(diffuse, normal, covered, 
+                                              diffuseTemp, normalTemp, coveredTemp, 
+                                              width, height));
+                int[] swap = diffuse;
+                diffuse = diffuseTemp;
+                diffuseTemp = swap;
+                swap = normal;
+                normal = normalTemp;
+                normalTemp = swap;
+                boolean[] swapCovered = covered;
+                covered = coveredTemp;
+                coveredTemp = swapCovered;
+            }
+ 
+            Image diffuseImage = createMipMapped(diffuse);
+            Image normalImage = createMipMapped(normal);
+            if( diffuseImage == null || normalImage == null ) {
+                // Cancelled part way through
+                release(diffuseImage);
+                release(normalImage);
+                return null;
+            }
+
+            if( log.isDebugEnabled() ) {
+                log.debug("Processed " + width + "x" + height + " atlas in " 
+                          + ((System.nanoTime() - start) / 1000000.0) + " ms");
+            }
+            return new AtlasImages(diffuseImage, normalImage);
+        }
+ 
+        /**
+         *  Packs the base level and all of the box filtered mip levels
+         *  beneath it into a single mip mapped RGBA8 image.
+         */
+        protected Image createMipMapped( int[] base ) {
+        
+            // Figure out the sizes first so that the whole chain can
+            // go in one buffer
+            int levels = 1;
+            for( int w = width, h = height; w > 1 || h > 1; levels++ ) {
+                w = Math.max(1, w / 2);
+                h = Math.max(1, h / 2);
+            }
+            int[] mipSizes = new int[levels];
+            int total = 0;
+            for( int i = 0, w = width, h = height; i < levels; i++ ) {
+                mipSizes[i] = w * h * 4;
+                total += mipSizes[i];
+                w = Math.max(1, w / 2);
+                h = Math.max(1, h / 2);
+            }
+ 
+            if( cancelled ) {
+                return null;
+            }
+            ByteBuffer data = BufferPool.getInstance().acquireBytes(total);
+            int[] level = base;
+            int w = width;
+            int h = height;
+            int offset = 0;
+            for( int i = 0; i < levels; i++ ) {
+                if( cancelled ) {
+                    BufferPool.getInstance().release(data);
+                    return null;
+                }
+                forEachRow(h, new Pack(level, data, offset, w));
+                offset += mipSizes[i];
+                if( i + 1 < levels ) {
+                    int nextWidth = Math.max(1, w / 2);
+                    int nextHeight = Math.max(1, h / 2);
+                    int[] next = new int[nextWidth * nextHeight];
+                    forEachRow(nextHeight, new Downsample(level, w, h, next, nextWidth));
+                    level = next;
+                    w = nextWidth;
+                    h = nextHeight;
+                }
+            }
+            
+            Image result = new Image(Format.RGBA8, width, height, data);
+            result.setMipMapSizes(mipSizes);
+            return result;
+        }
+ 
+        protected void release( Image image ) {
+            if( image != null ) {
+                BufferPool.getInstance().release(image.getData(0));
+            }
+        }
+ 
+        protected void forEachRow( int rows, RowFunction function ) {
+            new RowAction(this, function, 0, rows).invoke();
+        }
+    }
+ 
+    private interface RowFunction {
+        public void processRows( int start, int end );
+    }
+ 
+    /**
+     *  Recursively splits a range of rows until it is small enough
+     *  to process directly.
+     */   
+    private static class RowAction extends RecursiveAction {
+        private final ProcessTask owner;
+        private final RowFunction function;
+        private final int start;
+        private final int end;
+        
+        public RowAction( ProcessTask owner, RowFunction function, int start, int end ) {
+            this.owner = owner;
+            this.function = function;
+            this.start = start;
+            this.end = end;
+        }
+        
+        @Override
+        protected void compute() {
+            if( owner.cancelled ) {
+                return;
+            }
+            if( end - start <= ROWS_PER_TASK ) {
+                function.processRows(start, end);
+                return;
+            }
+            int mid = (start + end) >>> 1;
+            invokeAll(new RowAction(owner, function, start, mid), 
+                      new RowAction(owner, function, mid, end));
+        }
+    }
+ 
+    /**
+     *  Unpacks BGRA bytes into packed RGBA ints, optionally recording 
+     *  which texels have any alpha.
+     */   
+    private static class Convert implements RowFunction {
+        private final ByteBuffer source;
+        private final int[] target;
+        private final boolean[] covered;
+        private final int width;
+        
+        public Convert( ByteBuffer source, int[] target, boolean[] covered, int width ) {
+            this.source = source;
+            this.target = target;
+            this.covered = covered;
+            this.width = width;
+        }
+        
+        @Override
+        public void processRows( int start, int end ) {
+            for( int i = start * width; i < end * width; i++ ) {
+                int index = i * 4;
+                int b = source.get(index) & 0xff;
+                int g = source.get(index + 1) & 0xff;
+                int r = source.get(index + 2) & 0xff;
+                int a = source.get(index + 3) & 0xff;
+                target[i] = rgba(r, g, b, a);
+                if( covered != null ) {
+                    covered[i] = a != 0;
+                }
+            }
+        }
+    }
+ 
+    /**
+     *  Gives each uncovered texel next to a covered one the average
+     *  color of its covered neighbors.  The alpha of the texel is left
+     *  alone so the dilated texels stay transparent.
+     */   
+    private static class Dilate implements RowFunction {
+        private final int[] diffuse;
+        private final int[] normal;
+        private final boolean[] covered;
+        private final int[] diffuseOut;
+        private final int[] normalOut;
+        private final boolean[] coveredOut;
+        private final int width;
+        private final int height;
+        
+        public Dilate( int[] diffuse, int[] normal, boolean[] covered, 
+                       int[] diffuseOut, int[] normalOut, boolean[] coveredOut,
+                       int width, int height ) {
+            this.diffuse = diffuse;
+            this.normal = normal;
+            this.covered = covered;
+            this.diffuseOut = diffuseOut;
+            this.normalOut = normalOut;
+            this.coveredOut = coveredOut;
+            this.width = width;
+            this.height = height;
+        }
+        
+        @Override
+        public void processRows( int start, int end ) {
+            for( int y = start; y < end; y++ ) {
+                for( int x = 0; x < width; x++ ) {
+                    int i = y * width + x;
+                    diffuseOut[i] = diffuse[i];
+                    normalOut[i] = normal[i];
+                    coveredOut[i] = covered[i];
+                    if( covered[i] ) {
+                        continue;
+                    }
+                    
+                    int count = 0;
+                    int dr = 0, dg = 0, db = 0;
+                    int nr = 0, ng = 0, nb = 0;
+                    for( int ny = Math.max(0, y - 1); ny <= Math.min(height - 1, y + 1); ny++ ) {
+                        for( int nx = Math.max(0, x - 1); nx <= Math.min(width - 1, x + 1); nx++ ) {
+                            int n = ny * width + nx;
+                            if( !covered[n] ) {
+                                continue;
+                            }
+                            count++;
+                            dr += red(diffuse[n]);
+                            dg += green(diffuse[n]);
+                            db += blue(diffuse[n]);
+                            nr += red(normal[n]);
+                            ng += green(normal[n]);
+                            nb += blue(normal[n]);
+                        }
+                    }
+                    if( count == 0 ) {
+                        continue;
+                    }
+                    diffuseOut[i] = rgba(dr / count, dg / count, db / count, alpha(diffuse[i]));
+                    normalOut[i] = rgba(nr / count, ng / count, nb / count, alpha(normal[i]));
+                    coveredOut[i] = true;
+                }
+            }
+        }
+    }
+ 
+    /**
+     *  Box filters a level down to the next smaller mip level.  Odd
+     *  sizes just clamp at the last row or column.
+     */   
+    private static class Downsample implements RowFunction {
+        private final int[] source;
+        private final int sourceWidth;
+        private final int sourceHeight;
+        private final int[] target;
+        private final int targetWidth;
+        
+        public Downsample( int[] source, int sourceWidth, int sourceHeight, 
+                           int[] target, int targetWidth ) {
+            this.source = source;
+            this.sourceWidth = sourceWidth;
+            this.sourceHeight = sourceHeight;
+            this.target = target;
+            this.targetWidth = targetWidth;
+        }
+        
+        @Override
+        public void processRows( int start, int end ) {
+            for( int y = start; y < end; y++ ) {
+                int y1 = Math.min(y * 2, sourceHeight - 1);
+                int y2 = Math.min(y * 2 + 1, sourceHeight - 1);
+                for( int x = 0; x < targetWidth; x++ ) {
+                    int x1 = Math.min(x * 2, sourceWidth - 1);
+                    int x2 = Math.min(x * 2 + 1, sourceWidth - 1);
+                    int p1 = source[y1 * sourceWidth + x1];
+                    int p2 = source[y1 * sourceWidth + x2];
+                    int p3 = source[y2 * sourceWidth + x1];
+                    int p4 = source[y2 * sourceWidth + x2];
+                    int r = (red(p1) + red(p2) + red(p3) + red(p4) + 2) / 4;
+                    int g = (green(p1) + green(p2) + green(p3) + green(p4) + 2) / 4;
+                    int b = (blue(p1) + blue(p2) + blue(p3) + blue(p4) + 2) / 4;
+                    int a = (alpha(p1) + alpha(p2) + alpha(p3) + alpha(p4) + 2) / 4;
+                    target[y * targetWidth + x] = rgba(r, g, b, a);
+                }
+            }
+        }
+    }
+ 
+    /**
+     *  Writes packed RGBA ints into the image buffer as RGBA bytes
+     *  starting at the level's offset.
+     */   
+    private static class Pack implements RowFunction {
+        private final int[] source;
+        private final ByteBuffer target;
+        private final int offset;
+        private final int width;
+        
+        public Pack( int[] source, ByteBuffer target, int offset, int width ) {
+            this.source = source;
+            this.target = target;
+            this.offset = offset;
+            this.width = width;
+        }
+        
+        @Override
+        public void processRows( int start, int end ) {
+            for( int i = start * width; i < end * width; i++ ) {
+                int index = offset + i * 4;
+                int p = source[i];
+                target.put(index, (byte)red(p));
+                target.put(index + 1, (byte)green(p));
+                target.put(index + 2, (byte)blue(p));
+                target.put(index + 3, (byte)alpha(p));
+            }
+        }
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal;
+
+import com.jme3.util.BufferUtils;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ *  A size-classed pool of direct buffers.  Impostor rebuilds and atlas
+ *  regeneration release and then immediately recreate buffers of nearly
+ *  the same size so rather than destroying them, released buffers are 
+ *  kept here (up to a limit) and handed back out to the next build.
+ *
+ *  <p>Buffers are grouped by powers of two and acquired buffers will
+ *  have their limit set to the requested size though their capacity may
+ *  be larger.  Any direct buffer may be passed to release() but only
+ *  the ones that the pool handed out are kept.  Buffers allocated 
+ *  elsewhere, like the mesh generators' trunk and leaf buffers, come in
+ *  sizes that nothing asks the pool for so they are destroyed right
+ *  away rather than pinning direct memory.</p>
+ *
+ *  <p>Buffers handed out by the pool are tracked until they are released
+ *  so that getOutstandingCount() can be used to spot leaks.</p>
+ *
+ *  @author    Paul Speed
+ */
+public class BufferPool {
+
+    static Logger log = LoggerFactory.getLogger(BufferPool.class);
+
+    private static final BufferPool instance = new BufferPool(64 * 1024 * 1024);
+    
+    private static final int CLASS_COUNT = 32;
+     
+    private final BufferType<ByteBuffer> bytes = new BufferType<ByteBuffer>(1) {
+            protected ByteBuffer create( int size ) {
+                return BufferUtils.createByteBuffer(size);
+            }
+        };
+    private final BufferType<FloatBuffer> floats = new BufferType<FloatBuffer>(4) {
+            protected FloatBuffer create( int size ) {
+                return BufferUtils.createFloatBuffer(size);
+            }
+        };
+    private final BufferType<ShortBuffer> shorts = new BufferType<ShortBuffer>(2) {
+            protected ShortBuffer create( int size ) {
+                return BufferUtils.createShortBuffer(size);
+            }
+        };
+    private final BufferType<IntBuffer> ints = new BufferType<IntBuffer>(4) {
+            protected IntBuffer create( int size ) {
+                return BufferUtils.createIntBuffer(size);
+            }
+        };
+
+    private final Set<Buffer> outstanding = Collections.newSetFromMap(new IdentityHashMap<Buffer, Boolean>()); 
+    private final Set<Buffer> pooled = Collections.newSetFromMap(new IdentityHashMap<Buffer, Boolean>());
+    private long maxPooledBytes;
+    private long pooledBytes;
+    private long allocatedCount;
+    private long reusedCount;
+    private long destroyedCount;
+
+    public BufferPool( long maxPooledBytes ) {
+        this.maxPooledBytes = maxPooledBytes;
+    }
+ 
+    /**
+     *  Returns the pool shared by the whole application.  Direct
+     *  memory is a process-wide resource so there is little reason
+     *  to split it up.
+     */   
+    public static BufferPool getInstance() {
+        return instance;
+    }
+
+    public synchronized void setMaxPooledBytes( long maxPooledBytes ) {
+        this.maxPooledBytes = maxPooledBytes;
+        trim();
+    }
+    
+    public synchronized long getMaxPooledBytes() {
+        return maxPooledBytes;
+    }
+
+    public ByteBuffer acquireBytes( int size ) {
+        return acquire(bytes, size);
+    }
+ 
+    public FloatBuffer acquireFloats( int size ) {
+        return acquire(floats, size);
+    }
+    
+    public ShortBuffer acquireShorts( int size ) {
+        return acquire(shorts, size);
+    }
+    
+    public IntBuffer acquireInts( int size ) {
+        return acquire(ints, size);
+    }
+ 
+    /**
+     *  Returns the specified buffer to the pool.  Byte, float, short, and
+     *  int direct buffers that came from this pool are kept for reuse if
+     *  there is room, anything else is destroyed.  The caller must not use
+     *  the buffer after this call.
+     */   
+    public void release( Buffer buffer ) {
+        if( buffer == null ) {
+            return;
+        }
+        if( !buffer.isDirect() ) {
+            return;
+        }
+        if( buffer instanceof ByteBuffer ) {
+            release(bytes, (ByteBuffer)buffer);
+        } else if( buffer instanceof FloatBuffer ) {
+            release(floats, (FloatBuffer)buffer);
+        } else if( buffer instanceof ShortBuffer ) {
+            release(shorts, (ShortBuffer)buffer);
+        } else if( buffer instanceof IntBuffer ) {
+            release(ints, (IntBuffer)buffer);
+        } else {
+            synchronized( this ) {
+                outstanding.remove(buffer);
+                destroyedCount++;
+            }
+            BufferUtils.destroyDirectBuffer(buffer);
+        }
+    }
+ 
+    /**
+     *  Returns the number of buffers handed out by this pool that
+     *  have not yet been released.
+     */   
+    public synchronized int getOutstandingCount() {
+        return outstanding.size();
+    }
+    
+    public synchronized int getPooledCount() {
+        return pooled.size();
+    }
+    
+    public synchronized long getPooledBytes() {
+        return pooledBytes;
+    }
+    
+    public synchronized long getAllocatedCount() {
+        return allocatedCount;
+    }
+    
+    public synchronized long getReusedCount() {
+        return reusedCount;
+    }
+
+    public synchronized long getDestroyedCount() {
+        return destroyedCount;
+    }
+    
+    /**
+     *  Destroys all of the currently pooled buffers.
+     */
+    public synchronized void clear() {
+        long max = maxPooledBytes;
+        maxPooledBytes = 0;
+        trim();
+        maxPooledBytes = max;
+    }
+    
+    protected <T extends Buffer> T acquire( BufferType<T> type, int size ) {
+        int sizeClass = ceilClass(size);
+        T result;
+        synchronized( this ) {
+            result = type.buckets[sizeClass].poll();
+            if( result != null ) {
+                pooled.remove(result);
+                pooledBytes -= type.bytes(result);
+                reusedCount++;
+            }
+        }
+        if( result == null ) {
+            // Allocate the full size class so that the buffer can
+            // be reused for anything else in the class later.
+            result = type.create(sizeClass < 31 ? (1 << sizeClass) : size);
+            synchronized( this ) {
+                allocatedCount++;
+            }
+        }
+        result.clear();
+        result.limit(size);
+        synchronized( this ) {
+            outstanding.add(result);
+        }
+        return result;
+    }
+    
+    protected <T extends Buffer> void release( BufferType<T> type, T buffer ) {
+        long bytes = type.bytes(buffer);
+        synchronized( this ) {
+            if( pooled.contains(buffer) ) {
+                log.warn("Buffer released twice:" + buffer);
+                return;
+            }
+            boolean ours = outstanding.remove(buffer);
+            if( ours && pooledBytes + bytes <= maxPooledBytes && buffer.capacity() > 0 ) {
+                type.buckets[floorClass(buffer.capacity())].add(buffer);
+                pooled.add(buffer);
+                pooledBytes += bytes;
+                return;
+            }
+            destroyedCount++;
+        }
+        BufferUtils.destroyDirectBuffer(buffer);
+    }
+ 
+    /**
+     *  Destroys pooled buffers, largest first, until the pool fits
+     *  within maxPooledBytes.  Must be called with the lock held.
+     */   
+    private void trim() {
+        for( int i = CLASS_COUNT - 1; i >= 0 && pooledBytes > maxPooledBytes; i-- ) {
+            trim(bytes, i);
+            trim(floats, i);
+            trim(shorts, i);
+            trim(ints, i);
+        }
+    }
+    
+    private <T extends Buffer> void trim( BufferType<T> type, int sizeClass ) {
+        ArrayDeque<T> bucket = type.buckets[sizeClass];
+        while( pooledBytes > maxPooledBytes && !bucket.isEmpty() ) {
+            T buffer = bucket.poll();
+            pooled.remove(buffer);
+            pooledBytes -= type.bytes(buffer);
+            destroyedCount++;
+            BufferUtils.destroyDirectBuffer(buffer);
+        }
+    }
+ 
+    /**
+     *  Returns the smallest size class that can hold the specified
+     *  number of elements.
+     */   
+    private static int ceilClass( int size ) {
+        if( size <= 1 ) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1); 
+    }
+ 
+    /**
+     *  Returns the largest size class that a buffer of the specified
+     *  capacity can satisfy.
+     */   
+    private static int floorClass( int capacity ) {
+        return 31 - Integer.numberOfLeadingZeros(capacity);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BufferPool[pooled=" + pooled.size() + ", pooledBytes=" + pooledBytes 
+                    + ", outstanding=" + outstanding.size() 
+                    + ", allocated=" + allocatedCount + ", reused=" + reusedCount 
+                    + ", destroyed=" + destroyedCount + "]";
+    }
+ 
+    private static abstract class BufferType<T extends Buffer> {
+        final int elementSize;
+        final ArrayDeque<T>[] buckets;
+        
+        @SuppressWarnings("unchecked")
+        public BufferType( int elementSize ) {
+            this.elementSize = elementSize;
+            this.buckets = new ArrayDeque[CLASS_COUNT];
+            for( int i = 0; i < CLASS_COUNT; i++ ) {
+                buckets[i] = new ArrayDeque<T>();
+            }
+        }
+        
+        public long bytes( T buffer ) {
+            return (long)buffer.capacity() * elementSize;
+        }
+        
+        protected abstract T create( int size );
+    }
+}
@@ -66,6 +66,9 @@ public class DebugHudState extends BaseAppState {
     private Label location;
     private Label memory;
     private Label directMem;
+    private Label forest;
+    private ForestStats forestStats;
+    private long lastForestVersion = -1;
  
     private long lastUsedMem;
     private long lastMeg100;
@@ -108,6 +111,9 @@ public class DebugHudState extends BaseAppState {
         
         directMem = debugHud.addChild(new Label( "DMem: 0.0 meg / 0" ));
         directMem.setTextHAlignment( HAlignment.Right );
+        
+        forest = debugHud.addChild(new Label( "Forest: 0 trees" ));
+        forest.setTextHAlignment( HAlignment.Right );
     }
 
     @Override
@@ -135,6 +141,23 @@ public class DebugHudState extends BaseAppState {
             resetLocation();
         }
  
+        if( forestStats == null ) {
+            // The forest state is attached after we are so we
+            // have to grab this lazily.
+            ForestGridState forestState = getState(ForestGridState.class);
+            if( forestState != null && forestState.isInitialized() ) {
+                forestStats = forestState.getForestStats();
+            }
+        }
+        if( forestStats != null && forestStats.getVersion() != lastForestVersion ) {
+            lastForestVersion = forestStats.getVersion();
+            String s = String.format( "Forest: %d trees  %d verts  %d tris  %d geoms (%d trans)", 
+                                      forestStats.getTreeCount(), forestStats.getVertexCount(),
+                                      forestStats.getTriangleCount(), forestStats.getGeometryCount(),
+                                      forestStats.getTransparentCount() );
+            forest.setText(s);
+        }
+ 
         /*if( time > lastFrameCheck + 1000 )
             {
             long delta = time - lastFrameCheck;
@@ -39,11 +39,15 @@ package com.simsilica.arboreal;
 import com.jme3.app.Application;
 import com.jme3.export.binary.BinaryExporter;
 import com.jme3.scene.Geometry;
+import com.jme3.scene.Node;
 import com.jme3.scene.SceneGraphVisitorAdapter;
 import com.jme3.scene.Spatial;
+import com.jme3.scene.Spatial.CullHint;
 import com.jme3.system.JmeSystem;
 import com.jme3.texture.Image;
+import com.jme3.texture.Image.Format;
 import com.jme3.texture.Texture2D;
+import com.simsilica.arboreal.mesh.LodSwitchControl;
 import com.simsilica.lemur.Button;
 import com.simsilica.lemur.Command;
 import com.simsilica.lemur.Container;
@@ -55,7 +59,12 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
@@ -125,6 +134,7 @@ public class FileActionsState extends BaseAppState {
      */
     protected Spatial filterClone( Spatial tree ) {
         Spatial result = tree.deepClone();
+        final List<Node> levels = new ArrayList<Node>();
         result.depthFirstTraversal(new SceneGraphVisitorAdapter() {
                 @Override
                 public void visit( Geometry g ) {
@@ -132,11 +142,49 @@ public class FileActionsState extends BaseAppState {
                         g.removeFromParent();
                     }
                 }
-            });                                            
+                
+                @Override
+                public void visit( Node n ) {
+                    // Levels are hidden in the editor when they aren't
+                    // active or when their impostors are batched
+                    if( n.getName().startsWith("level:") ) {
+                        n.setCullHint(CullHint.Inherit);
+                        if( n.getUserData(TreeBuilderReference.SWITCH_DISTANCE) != null ) {
+                            levels.add(n);
+                        }
+                    }
+                }
+            });
+            
+        // In the editor, levels are switched by the forest's LOD manager
+        // but the exported tree needs to switch on its own.  The cloned
+        // control is pointed at the cloned levels, nearest first.
+        LodSwitchControl lodControl = result.getControl(LodSwitchControl.class);
+        if( lodControl != null ) {
+            Collections.sort(levels, new Comparator<Node>() {
+                    @Override
+                    public int compare( Node n1, Node n2 ) {
+                        return Float.compare(getSwitchDistance(n1), getSwitchDistance(n2));
+                    }
+                });
+            lodControl.clearLevels();
+            for( Node level : levels ) {
+                lodControl.addLevel(getSwitchDistance(level), level);
+            }
+            lodControl.setEnabled(true);
+        }                                            
         return result;
     }
  
+    private static float getSwitchDistance( Node level ) {
+        Float distance = level.getUserData(TreeBuilderReference.SWITCH_DISTANCE);
+        return distance;
+    }
+ 
     private Map<String, File> lastRoots = new HashMap<String, File>();
+    
+    // Reused for the BGRA copy of each saved atlas image
+    private ByteBuffer pngBuffer;
     protected File chooseFile( final String description, final boolean save, String... extensions ) {
         //final String ext = (!extension.startsWith(".") ? "." : "") + extension.toLowerCase();
         final String[] exts = new String[extensions.length];
@@ -264,9 +312,15 @@ public class FileActionsState extends BaseAppState {
     }
 
     public void savePng( File f, Image img ) throws IOException {
+        ByteBuffer data = img.getData(0);
+        if( img.getFormat() == Format.RGBA8 ) {
+            // writeImageFile() expects the BGRA layout that frame
+            // buffers are read back in
+            data = pngBuffer = AtlasPostProcessor.toBgra(img, pngBuffer);
+        }
         OutputStream out = new FileOutputStream(f);
         try {            
-            JmeSystem.writeImageFile(out, "png", img.getData(0), img.getWidth(), img.getHeight());  
+            JmeSystem.writeImageFile(out, "png", data, img.getWidth(), img.getHeight());  
         } finally {
             out.close();
         }             
@@ -275,6 +329,9 @@ public class FileActionsState extends BaseAppState {
     public void saveTreeAtlas( File f ) throws IOException {
 
         Image diffuse = getState(AtlasGeneratorState.class).getDiffuseMap();
+        if( diffuse == null ) {
+            throw new IOException("No impostor atlas has been generated, no level of detail uses Impostor reduction.");
+        }
         savePng(f, diffuse);
         
         String normalName = f.getName();
@@ -37,12 +37,26 @@
 package com.simsilica.arboreal;
 
 
-import com.jme3.material.Material;
+import com.jme3.bounding.BoundingSphere;
 import com.jme3.math.FastMath;
 import com.jme3.math.Quaternion;
+import com.jme3.math.Ray;
+import com.jme3.math.Transform;
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.Camera;
+import com.jme3.renderer.RenderManager;
+import com.jme3.renderer.ViewPort;
 import com.jme3.scene.Node;
+import com.jme3.scene.control.AbstractControl;
+import com.simsilica.arboreal.LevelOfDetailParameters.ReductionType;
+import com.simsilica.arboreal.TreeMeshes.LevelMeshes;
 import com.simsilica.builder.Builder;
-import java.util.Random;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
 
 
 /**
@@ -68,31 +82,87 @@ public class ForestGrid {
     private TreeBuilderReference[][] trees;
  
     private TreeParameters treeParameters; 
-    private Material treeMaterial; 
-    private Material wireMaterial;
-    private Material leafMaterial;
-    private Material flatMaterial;
-    private Material impostorMaterial;
+    private TreeMeshCache meshCache;
+    private TreeMaterials materials;
  
     private boolean showWireframe;
+    
+    private Camera camera;
+    private boolean instanced;
+    private InstancedForest instancing;
+    
+    // Without paging every tree in the grid is fully built so the
+    // grid is kept to the size it has always been limited to.
+    public static final int MAX_UNPAGED_SIZE = 10;
+    
+    private boolean paged;
+    private int chunkSize = 8;
+    private float pageDistance = 400;
+    private ForestChunk[][] chunks;
+    
+    private ForestLodManager lodManager = new ForestLodManager();
+    private ForestStats stats = new ForestStats();
+    private ForestIndex index = new ForestIndex(40);
+    private final IndexUpdater indexUpdater = new IndexUpdater();
+    private final List<TreeBuilderReference> visible = new ArrayList<TreeBuilderReference>();
+ 
+    // Build priorities are the distance from the camera in grid cells
+    // with anything out of view pushed behind everything in view.  Queued
+    // trees are only resubmitted when they move to a different bucket
+    // of PRIORITY_BUCKET cells.
+    private static final int OFFSCREEN_PRIORITY = 10000;
+    private static final int PRIORITY_BUCKET = 4;
+    private static final float PRIORITY_INTERVAL = 0.25f;
+    
+    // Trees that are queued but not in the index yet because
+    // they have no bounds
+    private final Set<TreeBuilderReference> unindexed = newTreeSet();
+    
+    // Trees that were in view the last time priorities were updated
+    private final Set<TreeBuilderReference> lastInView = newTreeSet();
+    private final Set<TreeBuilderReference> checked = newTreeSet();
+    private final List<TreeBuilderReference> nearby = new ArrayList<TreeBuilderReference>();
+    private final Vector3f priorityLocation = new Vector3f();
+    private final Vector3f lastPriorityLocation = new Vector3f();
+    private final Vector3f lastPriorityDirection = new Vector3f();
+    private final BoundingSphere prioritySphere = new BoundingSphere();
+    private float priorityTime;
+    private int visiblePending = -1;
+    
+    // Cells that need their seed, wireframe, or variation refreshed.
+    // Edits only touch the cells they affect.  Flags in allDirty apply
+    // to every cell.
+    private static final int DIRTY_SEED = 0x1;
+    private static final int DIRTY_WIREFRAME = 0x2;
+    private static final int DIRTY_VARIATION = 0x4;
+    private byte[][] dirtyCells = new byte[0][0];
+    private int[] dirtyList = new int[64];
+    private int dirtyCount;
+    private int allDirty;
+    
+    // Seeds the per-cell variation hash
+    private int gridSeed;
+    
+    // Reused when applying variation
+    private final Transform cellTransform = new Transform();
+    
+    private boolean batchImpostors;
+    private ImpostorBatch[][] batches;
+    private int transformVersion;
        
     public ForestGrid( TreeParameters treeParameters, 
-                       Material treeMaterial,
-                       Material wireMaterial,
-                       Material leafMaterial,
-                       Material flatMaterial,
-                       Material impostorMaterial,
+                       TreeSkeletonCache skeletons,
+                       TreeMaterials materials,
                        Builder builder ) {         
         this.treeParameters = treeParameters;
-        this.treeMaterial = treeMaterial;
-        this.wireMaterial = wireMaterial;
-        this.leafMaterial = leafMaterial;                       
-        this.flatMaterial = flatMaterial;
-        this.impostorMaterial = impostorMaterial;                       
+        this.meshCache = new TreeMeshCache(treeParameters, skeletons);
+        this.materials = materials;
         this.builder = builder;
         this.root = new Node("Forest"); 
+        this.root.addControl(new ForestControl());
         this.spacing = 5;
         this.seedRange = 9;
+        refreshIndexCellSize();
         setSize(1, 1);        
     }
  
@@ -103,6 +173,192 @@ public class ForestGrid {
     public TreeBuilderReference getTree( int i, int j ) {
         return trees[i][j];
     }
+ 
+    public TreeMeshCache getMeshCache() {
+        return meshCache;
+    }
+ 
+    /**
+     *  Returns the render statistics for the whole forest, broken
+     *  down by level of detail.
+     */   
+    public ForestStats getStats() {
+        return stats;
+    }
+    
+    /**
+     *  Returns the spatial index of the tree bounds in the root
+     *  node's local space.
+     */
+    public ForestIndex getIndex() {
+        return index;
+    }
+    
+    /**
+     *  Returns the manager that picks the level of detail for
+     *  every tree in the forest.
+     */   
+    public ForestLodManager getLodManager() {
+        return lodManager;
+    }
+ 
+    /**
+     *  Sets the camera used to pick each tree's level of detail 
+     *  when the forest is instanced.
+     */   
+    public void setCamera( Camera camera ) {
+        this.camera = camera;
+    }
+    
+    public Camera getCamera() {
+        return camera;
+    }
+ 
+    /**
+     *  Switches between rendering each tree's own node and rendering
+     *  all of the trees through hardware instancing.  Instancing 
+     *  requires a camera to be set.  Instancing can't be turned on if
+     *  none of the materials support it.
+     */
+    public void setInstanced( boolean b ) {
+        if( this.instanced == b ) {
+            return;
+        }
+        if( b && !materials.isInstancingSupported() ) {
+            return;
+        }
+        this.instanced = b;
+        
+        for( int i = 0; i < width; i++ ) {
+            for( int j = 0; j < height; j++ ) {
+                if( trees[i][j] == null ) {
+                    continue;
+                }
+                if( instanced ) {
+                    trees[i][j].getTreeNode().removeFromParent();
+                } else {
+                    getCellParent(i, j).attachChild(trees[i][j].getTreeNode());
+                }
+            }
+        }
+        
+        if( instanced ) {
+            releaseBatches();
+            if( instancing == null ) {
+                instancing = new InstancedForest(materials);
+            }
+            root.attachChild(instancing.getRootNode());
+        } else if( instancing != null ) {
+            instancing.clear();
+            instancing.getRootNode().removeFromParent();
+        }
+    }
+    
+    public boolean isInstanced() {
+        return instanced;
+    }
+ 
+    /**
+     *  Switches between keeping every tree in the grid built and
+     *  splitting the grid into chunks that are only built when the camera
+     *  is near them.  Chunks closer than the first impostor level's 
+     *  distance are fully built, chunks within the page distance are built
+     *  only to their impostor levels, and anything further away is released.
+     *  Paging requires a camera to be set.  Turning paging off shrinks
+     *  the grid to at most MAX_UNPAGED_SIZE cells on a side.
+     */
+    public void setPaged( boolean b ) {
+        if( this.paged == b ) {
+            return;
+        }
+        if( !b ) {
+            // Shrink while still paged so that the cells being
+            // dropped are never built
+            setSize(width, height, MAX_UNPAGED_SIZE);
+        }
+        this.paged = b;
+        
+        builder.pause();
+        if( paged ) {
+            resetChunks();
+        } else {
+            releaseChunks();
+            
+            // Everything gets built again
+            fillCells();
+            for( int i = 0; i < width; i++ ) {
+                for( int j = 0; j < height; j++ ) {
+                    TreeBuilderReference tree = trees[i][j];
+                    if( tree.isImpostorOnly() ) {
+                        tree.setImpostorOnly(false);
+                        tree.markChanged();
+                        build(tree);
+                    }
+                    if( !instanced ) {
+                        root.attachChild(tree.getTreeNode());
+                    }
+                }
+            }
+        }
+        applyDirty();
+        builder.resume();
+    }
+    
+    public boolean isPaged() {
+        return paged;
+    }
+ 
+    /**
+     *  When true, trees that are displaying their impostor level of 
+     *  detail are drawn through one merged mesh per chunk-sized block 
+     *  of the grid instead of one mesh each.  This has no effect while
+     *  the forest is instanced since the impostors are already instanced 
+     *  then.
+     */
+    public void setBatchImpostors( boolean b ) {
+        if( this.batchImpostors == b ) {
+            return;
+        }
+        this.batchImpostors = b;
+        if( !batchImpostors ) {
+            releaseBatches();
+        }
+    }
+    
+    public boolean isBatchImpostors() {
+        return batchImpostors;
+    }
+ 
+    /**
+     *  Sets the width and height of the paged chunks in grid cells.
+     */   
+    public void setChunkSize( int size ) {
+        if( this.chunkSize == size ) {
+            return;
+        }
+        this.chunkSize = size;
+        refreshIndexCellSize();
+        releaseBatches();
+        if( paged ) {
+            resetChunks();
+        }
+    }
+    
+    public int getChunkSize() {
+        return chunkSize;
+    }
+ 
+    /**
+     *  Sets the distance beyond which paged chunks are released
+     *  entirely.
+     */   
+    public void setPageDistance( float f ) {
+        this.pageDistance = f;
+    }
+    
+    public float getPageDistance() {
+        return pageDistance;
+    }
     
     public void setShowWireframe( boolean b ) {
         if( this.showWireframe == b ) {
@@ -112,6 +368,10 @@ public class ForestGrid {
         refreshWireframe();
     } 
 
+    /**
+     *  Sets the number of distinct seeds used across the grid.  Only
+     *  the trees whose seeds actually change are rebuilt.
+     */
     public void setSeedRange( int range ) {
         if( this.seedRange == range ) {
             return;
@@ -129,6 +389,7 @@ public class ForestGrid {
             return;
         }
         this.spacing = f;
+        refreshIndexCellSize();
         refreshVariation();
     }
     
@@ -183,6 +444,21 @@ public class ForestGrid {
     public float getPositionVariation() {
         return positionVariation;
     }
+ 
+    /**
+     *  Sets the seed used to randomly vary the cells of the grid.
+     */   
+    public void setGridSeed( int seed ) {
+        if( this.gridSeed == seed ) {
+            return;
+        }
+        this.gridSeed = seed;
+        refreshVariation();
+    }
+    
+    public int getGridSeed() {
+        return gridSeed;
+    }
 
     
     public void setWidth( int width ) {
@@ -201,7 +477,17 @@ public class ForestGrid {
         return height;
     }
     
+    /**
+     *  Sets the size of the grid in cells.  Unless the grid is paged,
+     *  the width and height are clamped to MAX_UNPAGED_SIZE.
+     */
     public void setSize( int width, int height ) {
+        setSize(width, height, paged ? Integer.MAX_VALUE : MAX_UNPAGED_SIZE);
+    }
+    
+    protected void setSize( int width, int height, int max ) {
+        width = Math.min(width, max);
+        height = Math.min(height, max);
  
         if( this.width == width && this.height == height ) {
             return;
@@ -209,13 +495,15 @@ public class ForestGrid {
 
         builder.pause();
         
+        // Anything still dirty is indexed by the old size
+        applyDirty();
+        
         if( trees != null ) {
             // Cancel and remove the ones that will go away
             if( this.width > width ) {
                 for( int i = width; i < this.width; i++ ) {
                     for( int j = 0; j < this.height; j++ ) {
-                        trees[i][j].getTreeNode().removeFromParent();
-                        builder.release(trees[i][j]);
+                        releaseTree(trees[i][j]);
                         trees[i][j] = null;
                     }
                 }
@@ -223,8 +511,7 @@ public class ForestGrid {
             if( this.height > height ) {
                 for( int i = 0; i < this.width; i++ ) {
                     for( int j = height; j < this.height; j++ ) {
-                        trees[i][j].getTreeNode().removeFromParent();
-                        builder.release(trees[i][j]);
+                        releaseTree(trees[i][j]);
                         trees[i][j] = null;
                     }
                 }
@@ -241,129 +528,826 @@ public class ForestGrid {
             }
         }
         
+        boolean wasSingle = this.width == 1 && this.height == 1;
         this.width = width;
         this.height = height;
  
         trees = newTrees;
+        dirtyCells = new byte[width][height];
+        
+        // The batch blocks will be recreated to match the new size
+        releaseBatches();
+        
+        if( paged ) {
+            // The chunks will fill themselves in as the camera
+            // gets near them
+            resetChunks();
+        } else {
+            fillCells();
+        }
+ 
+        // The seeds are based on the grid size so existing cells can 
+        // change, too.  Only the trees whose seeds actually change will
+        // be rebuilt.  Variation only depends on the cell itself except 
+        // that a single tree isn't varied at all.
+        allDirty |= DIRTY_SEED;
+        if( wasSingle != (width == 1 && height == 1) && trees[0][0] != null ) {
+            markDirty(0, 0, DIRTY_VARIATION);
+        }
+        applyDirty();
         
-        // Fill in any missing cells
+        builder.resume();
+    }
+ 
+    protected void fillCells() {
         for( int i = 0; i < width; i++ ) {
             for( int j = 0; j < height; j++ ) {
                 if( trees[i][j] == null ) {
-                    trees[i][j] = new TreeBuilderReference(treeParameters, 
-                                                           treeMaterial, 
-                                                           wireMaterial, 
-                                                           leafMaterial,
-                                                           flatMaterial,
-                                                           impostorMaterial);
-                    Node tree = trees[i][j].getTreeNode();
-                    tree.setLocalTranslation(i * spacing, 0, j * spacing);
-                    tree.setLocalScale(treeParameters.getBaseScale());
-                    root.attachChild(tree);
-                    builder.build(trees[i][j]);                                                           
+                    build(createTree(i, j));                                                           
                 }   
             }
         }
- 
-        refreshSeed();
-        refreshWireframe();
-        refreshVariation();
+    }
+    
+    protected TreeBuilderReference createTree( int i, int j ) {
+        TreeBuilderReference result = new TreeBuilderReference(meshCache, materials);
+        trees[i][j] = result; 
+        Node tree = result.getTreeNode();
+        tree.setLocalTranslation(i * spacing, 0, j * spacing);
+        tree.setLocalScale(treeParameters.getBaseScale());
+        result.setLevelListener(indexUpdater);
+        if( !instanced ) {
+            getCellParent(i, j).attachChild(tree);
+        }
+        lodManager.add(result);
         
-        builder.resume();
+        // Set the seed now so that the first build is the right one.  The
+        // rest gets applied with the other dirty cells.
+        result.setSeed(getCellSeed(i, j));
+        markDirty(i, j, DIRTY_WIREFRAME | DIRTY_VARIATION);
+        return result;
+    }
+ 
+    protected Node getCellParent( int i, int j ) {
+        if( chunks == null ) {
+            return root;
+        }
+        return chunks[i / chunkSize][j / chunkSize].node;
+    }
+    
+    protected void releaseTree( TreeBuilderReference tree ) {
+        if( tree == null ) {
+            return;
+        }
+        tree.getTreeNode().removeFromParent();
+        tree.setLevelListener(null);
+        tree.cancelBuild();
+        index.remove(tree);
+        unindexed.remove(tree);
+        lastInView.remove(tree);
+        lodManager.remove(tree);
+        if( instancing != null ) {
+            instancing.removeTree(tree);
+        }
+        builder.release(tree);
     }
  
     public void markChanged() {
+        // New builds will get new meshes.  The old ones will be
+        // released as the trees using them are rebuilt.
+        meshCache.markChanged();
+        
+        // Because it's a value we sort of cache and there
+        // is no external way to detect it's changed.
+        refreshSeed();
+        
         for( int i = 0; i < width; i++ ) {
             for( int j = 0; j < height; j++ ) {
                 if( trees[i][j] == null ) {
                     continue;
                 }
+                trees[i][j].setPreview(false);
                 trees[i][j].markChanged();
             }
         }
-        
-        // Because it's a value we sort of cache and there
-        // is no external way to detect it's changed.
-        refreshSeed();
     }
     
-    public void rebuild() {
+    /**
+     *  Updates the LOD switch distances of all of the trees from
+     *  the current parameters without regenerating any meshes.
+     */
+    public void refreshLodDistances() {
+        lodManager.refreshDistances(treeParameters);
         for( int i = 0; i < width; i++ ) {
-            for( int j = 0; j < height; j++ ) {            
+            for( int j = 0; j < height; j++ ) {
                 if( trees[i][j] == null ) {
                     continue;
                 }
-                builder.build(trees[i][j]);
+                trees[i][j].refreshDistances();
             }
         }
     }
     
-    protected void refreshWireframe() {
+    /**
+     *  Rebuilds only the first tree in the grid using a single
+     *  cheap level of detail.  The rest of the grid is left as it
+     *  is until the next markChanged() and rebuild().
+     */
+    public void preview() {
+        meshCache.markChanged();
+        
+        // In case the root seed changed.  The rest of the grid will
+        // pick up the new seed when the real build happens.
+        TreeBuilderReference tree = trees[0][0];
+        tree.setSeed(getCellSeed(0, 0));
+        tree.setPreview(true);
+        tree.markChanged();
+        build(tree);
+    }
+    
+    /**
+     *  Schedules the specified tree to be built with a priority
+     *  based on where it is relative to the camera.
+     */   
+    protected void build( TreeBuilderReference tree ) {
+        updatePriority(tree);
+        if( !index.contains(tree) ) {
+            unindexed.add(tree);
+        }
+        
+        // Need to recount what's left to build
+        visiblePending = -1;
+        builder.build(tree.newBuildRequest());
+    }
+ 
+    /**
+     *  Returns the number of trees in the camera's view that are
+     *  still waiting for their current build to be applied or -1 if 
+     *  that isn't known yet.  This is updated a few times a second 
+     *  while there are builds pending.
+     */
+    public int getVisiblePendingCount() {
+        return visiblePending;
+    }
+ 
+    /**
+     *  Sets the specified tree's build priority from its distance to 
+     *  the last known camera location and returns true if it is in 
+     *  the camera's view.  Trees in view are always built before trees
+     *  that aren't.
+     */   
+    protected boolean updatePriority( TreeBuilderReference tree ) {
+        if( camera == null ) {
+            return true;
+        }
+        Node node = tree.getTreeNode();
+        Vector3f pos = node.getLocalTranslation();
+        int priority = (int)(pos.distance(priorityLocation) / Math.max(spacing, 0.1f));
+ 
+        // The tree may not have any bounds yet so we use a sphere 
+        // about the size of the trunk instead.
+        float size = Math.max(1, treeParameters.getTrunkHeight() * node.getLocalScale().y);
+        Vector3f center = prioritySphere.getCenter();
+        center.set(pos).addLocal(0, size * 0.5f, 0);
+        root.localToWorld(center, center);
+        prioritySphere.setRadius(size * root.getWorldScale().y);
+        
+        int planeState = camera.getPlaneState();
+        camera.setPlaneState(0);
+        boolean inView = camera.contains(prioritySphere) != Camera.FrustumIntersect.Outside;
+        camera.setPlaneState(planeState);
+        
+        if( !inView ) {
+            priority += OFFSCREEN_PRIORITY;
+        }
+        tree.setPriority(priority);
+        return inView;
+    }
+ 
+    /**
+     *  While builds are pending, re-evaluates the priorities of the trees
+     *  in or near the view when the camera moves or turns and periodically 
+     *  recounts the trees in view that are still building.  Trees whose
+     *  priority bucket changes are resubmitted to the builder.
+     */   
+    protected void updatePriorities( Vector3f location, float tpf ) {
+        priorityLocation.set(location);
+        if( builder.getPendingCount() == 0 ) {
+            visiblePending = 0;
+            return;
+        }
+        
+        priorityTime += tpf;
+        Vector3f dir = camera.getDirection();
+        if( visiblePending >= 0 && priorityTime < PRIORITY_INTERVAL
+            && location.distanceSquared(lastPriorityLocation) < spacing * spacing * 0.25f
+            && dir.dot(lastPriorityDirection) > 0.98f ) {
+            return;
+        }
+        priorityTime = 0;
+        lastPriorityLocation.set(location);
+        lastPriorityDirection.set(dir);
+        
+        // The index finds the trees in view and near the camera.  The
+        // trees that were in view last time are checked in case they've 
+        // left it, and trees without bounds yet can only be checked 
+        // directly.
+        nearby.clear();
+        index.getTrees(camera, root.getWorldTransform(), nearby);
+        index.getTrees(location, spacing * PRIORITY_BUCKET, nearby);
+        nearby.addAll(lastInView);
+        nearby.addAll(unindexed);
+        lastInView.clear();
+        
+        int count = 0;
+        for( TreeBuilderReference tree : nearby ) {
+            if( !checked.add(tree) ) {
+                continue;
+            }
+            if( !tree.isBuilding() ) {
+                unindexed.remove(tree);
+                continue;
+            }
+            if( updatePriority(tree) ) {
+                lastInView.add(tree);
+                count++;
+            }
+            if( getPriorityBucket(tree.getPriority()) 
+                != getPriorityBucket(tree.getQueuedPriority()) ) {
+                builder.build(tree.newBuildRequest());
+            }
+        }
+        checked.clear();
+        nearby.clear();
+        visiblePending = count;
+    }
+ 
+    private static int getPriorityBucket( int priority ) {
+        return priority / PRIORITY_BUCKET;
+    }
+ 
+    private static Set<TreeBuilderReference> newTreeSet() {
+        return Collections.newSetFromMap(new IdentityHashMap<TreeBuilderReference, Boolean>());
+    }
+ 
+    public void rebuild() {
         for( int i = 0; i < width; i++ ) {
-            for( int j = 0; j < height; j++ ) {
+            for( int j = 0; j < height; j++ ) {            
                 if( trees[i][j] == null ) {
                     continue;
                 }
-                trees[i][j].setWireFrame(showWireframe);
+                build(trees[i][j]);
             }
         }
     }
+    
+    protected void refreshWireframe() {
+        allDirty |= DIRTY_WIREFRAME;
+        applyDirty();
+    }
         
     protected void refreshSeed() {
-        int index = 0;
-        int rootSeed = treeParameters.getSeed();
-        for( int i = 0; i < width; i++ ) {
-            for( int j = 0; j < height; j++ ) {
-                if( trees[i][j] == null ) {
-                    continue;
+        allDirty |= DIRTY_SEED;
+        applyDirty();
+    }
+    
+    protected void refreshVariation() {
+        allDirty |= DIRTY_VARIATION;
+        applyDirty();
+    }
+ 
+    protected void markDirty( int i, int j, int flags ) {
+        int existing = dirtyCells[i][j];
+        if( existing == 0 ) {
+            if( dirtyCount == dirtyList.length ) {
+                dirtyList = Arrays.copyOf(dirtyList, dirtyCount * 2);
+            }
+            dirtyList[dirtyCount++] = i * height + j;
+        }
+        dirtyCells[i][j] = (byte)(existing | flags);
+    }
+ 
+    /**
+     *  Refreshes the dirty parts of any dirty cells.
+     */   
+    protected void applyDirty() {
+        if( allDirty == 0 && dirtyCount == 0 ) {
+            return;
+        }
+        boolean moved = (allDirty & DIRTY_VARIATION) != 0;
+        if( allDirty != 0 ) {
+            for( int i = 0; i < width; i++ ) {
+                for( int j = 0; j < height; j++ ) {
+                    applyCell(i, j, allDirty | dirtyCells[i][j]);
+                    dirtyCells[i][j] = 0;
                 }
-                trees[i][j].setSeed(rootSeed + (index % seedRange));
-                index++;
             }
+        } else {
+            for( int n = 0; n < dirtyCount; n++ ) {
+                int i = dirtyList[n] / height;
+                int j = dirtyList[n] % height;
+                int flags = dirtyCells[i][j];
+                moved |= (flags & DIRTY_VARIATION) != 0;
+                applyCell(i, j, flags);
+                dirtyCells[i][j] = 0;
+            }
+        }
+        allDirty = 0;
+        dirtyCount = 0;
+        if( moved ) {
+            invalidateTransforms();
         }
     }
     
-    protected void refreshVariation() {
+    protected void applyCell( int i, int j, int flags ) {
+        TreeBuilderReference tree = trees[i][j];
+        if( tree == null ) {
+            return;
+        }
+        if( (flags & DIRTY_SEED) != 0 ) {
+            int seed = getCellSeed(i, j);
+            if( tree.getSeed() != seed ) {
+                tree.setSeed(seed);
+                tree.markChanged();
+                build(tree);
+            }
+        }
+        if( (flags & DIRTY_WIREFRAME) != 0 ) {
+            tree.setWireFrame(showWireframe);
+        }
+        if( (flags & DIRTY_VARIATION) != 0 ) {
+            applyVariation(i, j, tree.getTreeNode());
+            index.update(tree);
+        }
+    }
+ 
+    protected int getCellSeed( int i, int j ) {
+        // Based on the cell position rather than a running count
+        // so that paged cells get the same seed whenever they 
+        // are loaded.
+        int index = i * height + j;
+        return treeParameters.getSeed() + (index % seedRange);
+    }
+ 
+    /**
+     *  Returns a random value from 0 to 1 for the specified cell and
+     *  sample index.  This is a stateless hash of the cell, the grid seed,
+     *  and the sample so any cell's variation can be calculated on its
+     *  own and doesn't change when the size of the grid changes.
+     */
+    protected float random( int i, int j, int sample ) {
+        int h = gridSeed * 0x27d4eb2d;
+        h ^= i * 0x85ebca6b;
+        h = Integer.rotateLeft(h, 13);
+        h ^= j * 0xc2b2ae35;
+        h = Integer.rotateLeft(h, 13);
+        h ^= sample * 0x165667b1;
+        
+        // Murmur3 finalizer to spread the bits
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        
+        // Use the top 24 bits for the float's mantissa
+        return (h >>> 8) * (1f / (1 << 24));
+    }
     
+    protected void applyVariation( int i, int j, Node tree ) {
+        tree.setLocalTransform(getCellTransform(i, j, cellTransform));
+    }
+ 
+    /**
+     *  Calculates the transform for the specified cell.  This depends only
+     *  on the cell and the grid settings and does not touch any shared
+     *  state so it can be called for any cell from any thread.
+     */   
+    public Transform getCellTransform( int i, int j, Transform store ) {
+        if( store == null ) {
+            store = new Transform();
+        }
+        
         // If there is only one tree then we won't vary it
         // at all... we could also have made sure 0,0 was always
         // 0 variation but I think this will be ok
         if( width == 1 && height == 1 ) {
             // Just make sure it doesn't have anything weird
-            Node tree = trees[0][0].getTreeNode();
-            tree.setLocalScale(treeParameters.getBaseScale());
-            tree.setLocalRotation(new Quaternion());
-            return;
+            store.setTranslation(i * spacing, 0, j * spacing);
+            store.setRotation(Quaternion.IDENTITY);
+            store.setScale(treeParameters.getBaseScale());
+            return store;
         }
+ 
+        float x = leanVariation * ((random(i, j, 0) * 2) - 1) * FastMath.QUARTER_PI;
+        float y = leanVariation * ((random(i, j, 1) * 2) - 1) * FastMath.QUARTER_PI;
+        float scale = scaleVariation * ((random(i, j, 2) * 2) - 1);
+        float angle = rotationVariation * ((random(i, j, 3) * 2) - 1) * FastMath.TWO_PI;
+        float xOffset = positionVariation * (random(i, j, 4) - 0.5f) * spacing; 
+        float yOffset = positionVariation * (random(i, j, 5) - 0.5f) * spacing;
+ 
+        // Rotation is yaw * pitch * roll, ie: the same as multiplying
+        // the three fromAngles() quaternions but without needing temps.
+        float sy = FastMath.sin(angle * 0.5f);
+        float cy = FastMath.cos(angle * 0.5f);
+        float sx = FastMath.sin(x * 0.5f);
+        float cx = FastMath.cos(x * 0.5f);
+        float sz = FastMath.sin(y * 0.5f);
+        float cz = FastMath.cos(y * 0.5f);
         
+        float ax = cy * sx;
+        float ay = sy * cx;
+        float az = -sy * sx;
+        float aw = cy * cx;
+        store.getRotation().set(ax * cz + ay * sz, 
+                                ay * cz - ax * sz, 
+                                aw * sz + az * cz, 
+                                aw * cz - az * sz);
+ 
+        if( scale < 0 ) 
+            scale *= 0.5f;               
+        store.setScale((1 + scale) * treeParameters.getBaseScale());
+                
+        store.setTranslation(i * spacing + xOffset, 0, j * spacing + yOffset);
+        return store; 
+    }
     
-        Random rand = new Random(0);
+    protected void invalidateTransforms() {
+        transformVersion++;
+        lodManager.refreshPositions();
+        if( instancing != null ) {
+            instancing.invalidateTransforms();
+        }
+    }
+ 
+    /**
+     *  Returns the distance of the first impostor level of detail
+     *  or -1 if there isn't one.
+     */
+    protected float getImpostorDistance() {
+        for( int i = 0; i < treeParameters.getLodCount(); i++ ) {
+            LevelOfDetailParameters lod = treeParameters.getLod(i);
+            if( lod.reduction == ReductionType.Impostor ) {
+                return lod.distance;
+            }
+        }
+        return -1;
+    }
+ 
+    protected void resetChunks() {
+        releaseChunks();
+        
+        int xChunks = (width + chunkSize - 1) / chunkSize;
+        int zChunks = (height + chunkSize - 1) / chunkSize;
+        chunks = new ForestChunk[xChunks][zChunks];
+        for( int x = 0; x < xChunks; x++ ) {
+            for( int z = 0; z < zChunks; z++ ) {
+                ForestChunk chunk = new ForestChunk(x, z);
+                chunks[x][z] = chunk;
+ 
+                // Adopt any trees that already exist.  Chunks that are
+                // too far away will be released on the next update.
+                boolean loaded = false;
+                for( int i = chunk.iMin; i < chunk.iMax; i++ ) {
+                    for( int j = chunk.jMin; j < chunk.jMax; j++ ) {
+                        if( trees[i][j] == null ) {
+                            continue;
+                        }
+                        loaded = true;
+                        if( !instanced ) {
+                            chunk.node.attachChild(trees[i][j].getTreeNode());
+                        }
+                    }
+                }
+                if( loaded ) {
+                    chunk.state = trees[chunk.iMin][chunk.jMin] != null 
+                                    && trees[chunk.iMin][chunk.jMin].isImpostorOnly() 
+                                        ? ChunkState.Far : ChunkState.Near;
+                    root.attachChild(chunk.node);
+                }
+            }
+        }
+        
+        // The main tree is always loaded since it's the one the rest
+        // of the editor works with.
+        setChunkState(chunks[0][0], ChunkState.Near);
+    }
+    
+    protected void releaseChunks() {
+        if( chunks == null ) {
+            return;
+        }
+        for( ForestChunk[] column : chunks ) {
+            for( ForestChunk chunk : column ) {
+                chunk.node.removeFromParent();
+            }
+        }
+        chunks = null;
+    }
+ 
+    protected void updatePaging( Vector3f cameraLocation ) {
+        float impostorDistance = getImpostorDistance();
+        float nearDistance = impostorDistance < 0 ? pageDistance : Math.min(impostorDistance, pageDistance);
+        
+        // Chunks don't unload until they are a little past where they 
+        // would load so that the boundary chunks don't flip back and forth
+        float margin = chunkSize * spacing * 0.25f;
+        
+        boolean changed = false;
+        for( int x = 0; x < chunks.length; x++ ) {
+            for( int z = 0; z < chunks[x].length; z++ ) {
+                ForestChunk chunk = chunks[x][z];
+                float d = chunk.distance(cameraLocation);
+                
+                ChunkState target;
+                if( d < nearDistance || (chunk.state == ChunkState.Near && d < nearDistance + margin) ) {
+                    target = ChunkState.Near;
+                } else if( d < pageDistance 
+                           || (chunk.state != ChunkState.Unloaded && d < pageDistance + margin) ) {
+                    target = impostorDistance < 0 ? ChunkState.Near : ChunkState.Far;
+                } else {
+                    target = ChunkState.Unloaded;
+                }
+                if( x == 0 && z == 0 ) {
+                    target = ChunkState.Near;
+                }
+                changed |= setChunkState(chunk, target);
+            }
+        }
+        
+        if( changed ) {
+            applyDirty();
+        }
+    }
+ 
+    /**
+     *  Loads, unloads, or rebuilds the trees in the specified chunk
+     *  as needed.  Returns true if any new trees were created.
+     */   
+    protected boolean setChunkState( ForestChunk chunk, ChunkState state ) {
+        if( chunk.state == state ) {
+            return false;
+        }
+        chunk.state = state;
+        if( state == ChunkState.Unloaded ) {
+            for( int i = chunk.iMin; i < chunk.iMax; i++ ) {
+                for( int j = chunk.jMin; j < chunk.jMax; j++ ) {
+                    releaseTree(trees[i][j]);
+                    trees[i][j] = null;
+                }
+            }
+            chunk.node.removeFromParent();
+            return false;
+        }
+ 
+        root.attachChild(chunk.node);
+        
+        boolean created = false;
+        boolean impostorOnly = state == ChunkState.Far;
+        for( int i = chunk.iMin; i < chunk.iMax; i++ ) {
+            for( int j = chunk.jMin; j < chunk.jMax; j++ ) {
+                TreeBuilderReference tree = trees[i][j];
+                if( tree == null ) {
+                    tree = createTree(i, j);
+                    created = true;
+                } else if( tree.isImpostorOnly() == impostorOnly ) {
+                    continue;
+                }
+                tree.setImpostorOnly(impostorOnly);
+                tree.markChanged();
+                build(tree);
+            }
+        }
+        return created;
+    }
+ 
+    protected void updateInstancing() {
         for( int i = 0; i < width; i++ ) {
             for( int j = 0; j < height; j++ ) {
                 if( trees[i][j] == null ) {
                     continue;
                 }
-                Node tree = trees[i][j].getTreeNode();
-                float x = leanVariation * ((rand.nextFloat() * 2) - 1) * FastMath.QUARTER_PI;
-                float y = leanVariation * ((rand.nextFloat() * 2) - 1) * FastMath.QUARTER_PI;
-                float scale = scaleVariation * ((rand.nextFloat() * 2) - 1);
-                float angle = rotationVariation * ((rand.nextFloat() * 2) - 1) * FastMath.TWO_PI;
+                instancing.updateTree(trees[i][j]);
+            }
+        }
+        instancing.commit();
+    }
+ 
+    protected void refreshIndexCellSize() {
+        index.setCellSize(Math.max(1, spacing * chunkSize));
+    }
+ 
+    /**
+     *  Adds all of the trees whose bounds are in the camera's view
+     *  to the results.
+     */   
+    public List<TreeBuilderReference> getVisibleTrees( List<TreeBuilderReference> results ) {
+        return index.getTrees(camera, root.getWorldTransform(), results);
+    }
+ 
+    /**
+     *  Adds all of the trees whose bounds are within the specified world
+     *  space radius of the world space center to the results.
+     */   
+    public List<TreeBuilderReference> getTrees( Vector3f center, float radius, 
+                                                List<TreeBuilderReference> results ) {
+        Vector3f local = root.worldToLocal(center, null);
+        return index.getTrees(local, radius / root.getWorldScale().x, results);
+    }
+ 
+    /**
+     *  Returns the tree whose bounds are hit first by the specified
+     *  world space ray or null if no tree's bounds are hit.
+     */   
+    public TreeBuilderReference pickTree( Ray ray ) {
+        Vector3f origin = root.worldToLocal(ray.getOrigin(), null);
+        Vector3f direction = root.getWorldRotation().inverse().multLocal(ray.getDirection().clone());
+        return index.pick(new Ray(origin, direction));
+    }
+ 
+    /**
+     *  Samples the levels of all of the trees whose bounds are in the
+     *  camera's view.  The bounds come from the spatial index so this
+     *  works the same whether the tree nodes are attached or drawn 
+     *  through instancing and batching.
+     */
+    protected void updateStats() {
+        stats.begin(treeParameters.getLodCount());
+        visible.clear();
+        getVisibleTrees(visible);
+        for( TreeBuilderReference tree : visible ) {
+            LevelMeshes meshes = tree.getActiveLevelMeshes();
+            if( meshes != null ) {
+                stats.add(tree.getActiveLod(), meshes);
+            }
+        }
+        visible.clear();
+        stats.end();
+    }
+ 
+    protected void updateBatches() {
+        int xBatches = (width + chunkSize - 1) / chunkSize;
+        int zBatches = (height + chunkSize - 1) / chunkSize;
+        if( batches == null ) {
+            batches = new ImpostorBatch[xBatches][zBatches];
+        }
+        
+        for( int i = 0; i < width; i++ ) {
+            for( int j = 0; j < height; j++ ) {
+                TreeBuilderReference tree = trees[i][j];
+                ImpostorBatch batch = batches[i / chunkSize][j / chunkSize];
+                int slot = (i % chunkSize) * chunkSize + (j % chunkSize);
                 
-                Quaternion rot = new Quaternion();
-                rot = rot.mult(new Quaternion().fromAngles(0, angle, 0));
-                rot = rot.mult(new Quaternion().fromAngles(x, 0, 0));
-                rot = rot.mult(new Quaternion().fromAngles(0, 0, y));
+                LevelMeshes level = null;
+                Node node = null;
+                if( tree != null ) {
+                    tree.setImpostorsBatched(true);
+                    node = tree.getTreeNode();
+                    level = tree.getActiveLevelMeshes();
+                }
+                if( level == null || level.reduction != ReductionType.Impostor 
+                    || level.treeMesh == null ) {
+                    if( batch != null ) {
+                        batch.clearSlot(slot);
+                    }
+                    continue;
+                }
                 
-                tree.setLocalRotation(rot);
+                if( batch == null ) {
+                    batch = new ImpostorBatch("impostors[" + (i / chunkSize) + ", " + (j / chunkSize) + "]",
+                                              chunkSize * chunkSize, 
+                                              materials.getImpostorBatchMaterial());
+                    batch.attach(root);
+                    batches[i / chunkSize][j / chunkSize] = batch;
+                }
+                if( batch.needsUpdate(slot, level.treeMesh, transformVersion) ) {
+                    Transform transform = new Transform(new Vector3f(0, level.yOffset, 0));
+                    transform.combineWithParent(node.getLocalTransform());
+                    batch.setSlot(slot, level.treeMesh, transform, transformVersion);
+                }
+            }
+        }
+        
+        materials.refreshImpostorBatchMaterial();
+        for( ImpostorBatch[] column : batches ) {
+            for( ImpostorBatch batch : column ) {
+                if( batch == null ) {
+                    continue;
+                }
+                batch.setWireMaterial(showWireframe ? materials.getImpostorBatchWireMaterial() : null);
+                batch.commit();
+            }
+        }
+    }
  
-                if( scale < 0 ) 
-                    scale *= 0.5f;               
-                tree.setLocalScale((1 + scale) * treeParameters.getBaseScale());
-                
-                float xOffset = positionVariation * (rand.nextFloat() - 0.5f) * spacing; 
-                float yOffset = positionVariation * (rand.nextFloat() - 0.5f) * spacing;
-                tree.setLocalTranslation(i * spacing + xOffset, 0, j * spacing + yOffset); 
+    protected void releaseBatches() {
+        if( batches == null ) {
+            return;
+        }
+        for( ImpostorBatch[] column : batches ) {
+            for( ImpostorBatch batch : column ) {
+                if( batch != null ) {
+                    batch.release();
+                }
+            }
+        }
+        batches = null;
+        
+        for( int i = 0; i < width; i++ ) {
+            for( int j = 0; j < height; j++ ) {
+                if( trees[i][j] != null ) {
+                    trees[i][j].setImpostorsBatched(false);
+                }
             }
         }
     }
+ 
+    private enum ChunkState { Unloaded, Far, Near }
+ 
+    /**
+     *  A square section of the grid that is loaded and unloaded
+     *  as a unit when paging.
+     */
+    private class ForestChunk {
+        int iMin;
+        int jMin;
+        int iMax;
+        int jMax;
+        Node node;
+        ChunkState state = ChunkState.Unloaded;
+        
+        public ForestChunk( int x, int z ) {
+            this.iMin = x * chunkSize;
+            this.jMin = z * chunkSize;
+            this.iMax = Math.min(width, iMin + chunkSize);
+            this.jMax = Math.min(height, jMin + chunkSize);
+            this.node = new Node("Chunk[" + x + ", " + z + "]");
+        }
+ 
+        /**
+         *  Returns the distance in x,z from the specified location
+         *  to the nearest cell in this chunk.
+         */       
+        public float distance( Vector3f loc ) {
+            float xMin = iMin * spacing;
+            float xMax = (iMax - 1) * spacing;
+            float zMin = jMin * spacing;
+            float zMax = (jMax - 1) * spacing;
+            float dx = Math.max(0, Math.max(xMin - loc.x, loc.x - xMax));
+            float dz = Math.max(0, Math.max(zMin - loc.z, loc.z - zMax));
+            return FastMath.sqrt(dx * dx + dz * dz);
+        }
+    }
+ 
+    /**
+     *  Keeps the spatial index up to date as trees are built, released,
+     *  or switch levels.
+     */
+    private class IndexUpdater implements TreeBuilderReference.LevelListener {
+        @Override
+        public void activeLevelChanged( TreeBuilderReference tree ) {
+            index.update(tree);
+            if( index.contains(tree) ) {
+                unindexed.remove(tree);
+            }
+        }
+    }
+    
+    /**
+     *  Keeps the paged chunks, tree levels of detail, instanced trees, and
+     *  impostor batches up to date with the camera.  This runs as part of
+     *  the scene's logical update so that it sees any levels that were
+     *  applied earlier in the frame.
+     */   
+    private class ForestControl extends AbstractControl {
+    
+        private final Vector3f cameraLocation = new Vector3f();
+
+        @Override
+        protected void controlUpdate( float tpf ) {
+            if( camera == null ) {
+                return;
+            }
+            root.worldToLocal(camera.getLocation(), cameraLocation);
+            if( chunks != null ) {
+                updatePaging(cameraLocation);
+            }
+            
+            lodManager.refreshDistances(treeParameters);
+            lodManager.update(cameraLocation);
+            updatePriorities(cameraLocation, tpf);
+            
+            if( instanced ) {
+                updateInstancing();
+            } else if( batchImpostors ) {
+                updateBatches();
+            }
+            
+            updateStats();
+        }
+
+        @Override
+        protected void controlRender( RenderManager rm, ViewPort vp ) {
+        }
+    }
 }
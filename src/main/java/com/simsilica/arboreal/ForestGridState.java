@@ -58,6 +58,8 @@ import com.simsilica.lemur.core.VersionedReference;
 import com.simsilica.lemur.event.BaseAppState;
 import com.simsilica.lemur.props.PropertyPanel;
 import com.simsilica.lemur.style.ElementId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 
 /**
@@ -68,14 +70,20 @@ import com.simsilica.lemur.style.ElementId;
  */
 public class ForestGridState extends BaseAppState {
 
+    static Logger log = LoggerFactory.getLogger(ForestGridState.class);
+
     private ForestGrid forestGrid;
     private TreeBuilderReference mainTree;
  
     private Label vertsLabel;
     private Label trisLabel;
+    private Label forestLabel;
+    private long lastStatsVersion = -1;
     private VersionedHolder<Boolean> building = new VersionedHolder<Boolean>(true);
  
     private VersionedReference<TreeParameters> treeParameters;
+    private VersionedReference<TreeParameters> windParameters;
+    private VersionedReference<TreeParameters> lodParameters;
     private VersionedReference<PropertyPanel> gridParameters;
     
     private Texture bark;
@@ -90,11 +98,19 @@ public class ForestGridState extends BaseAppState {
     private Material flatMaterial;
     private Material impostorMaterial;
     private Material leafMaterial;
+    private TreeMaterials materials;
 
     private boolean showTestPattern = false;
     private boolean showTrunkBumps = true;
     private boolean useWind = false;
     private boolean useScattering = false;
+    private boolean usePreview = true;
+    
+    // Time with no tree parameter edits before the preview
+    // is replaced with the full grid
+    private float previewSettleTime = 0.5f;
+    private float lastEditTime;
+    private boolean previewing;
 
     private Vector4f windCurve = new Vector4f();
 
@@ -112,6 +128,14 @@ public class ForestGridState extends BaseAppState {
     public Node getMainTreeNode() {
         return mainTree.getTreeNode();
     }
+ 
+    /**
+     *  Returns the render statistics for the visible part of the 
+     *  whole forest.  These are sampled every frame.
+     */   
+    public ForestStats getForestStats() {
+        return forestGrid.getStats();
+    }
     
     public void rebuild() {
         building.setObject(true);
@@ -131,6 +155,7 @@ public class ForestGridState extends BaseAppState {
             treeMaterial.setTexture("DiffuseMap", bark);         
             flatMaterial.setTexture("DiffuseMap", bark);         
         }
+        markMaterialsChanged();
     }
  
     public boolean getShowTestPattern() {
@@ -149,6 +174,7 @@ public class ForestGridState extends BaseAppState {
             treeMaterial.clearParam("NormalMap");
             treeMaterial.clearParam("ParallaxMap");
         }
+        markMaterialsChanged();
     }
 
     public boolean getShowTrunkBumps() {
@@ -164,12 +190,26 @@ public class ForestGridState extends BaseAppState {
         leafMaterial.setBoolean("UseWind", useWind);
         flatMaterial.setBoolean("UseWind", useWind);
         impostorMaterial.setBoolean("UseWind", useWind);
+        markMaterialsChanged();
     }
     
     public boolean getUseWind() {
         return useWind;
     }
     
+    /**
+     *  When true, tree parameter edits only rebuild a cheap version
+     *  of the main tree until the edits settle down.  Then the whole
+     *  grid is rebuilt at full detail.
+     */
+    public void setUsePreview( boolean b ) {
+        this.usePreview = b;
+    }
+    
+    public boolean getUsePreview() {
+        return usePreview;
+    }
+    
     public void setUseScattering( boolean b ) {
         if( this.useScattering == b ) {
             return;
@@ -180,6 +220,7 @@ public class ForestGridState extends BaseAppState {
             leafMaterial.setBoolean("UseScattering", useScattering);
             flatMaterial.setBoolean("UseScattering", useScattering);
             impostorMaterial.setBoolean("UseScattering", useScattering);
+            markMaterialsChanged();
         }
     }
     
@@ -204,15 +245,19 @@ public class ForestGridState extends BaseAppState {
         noise = assets.loadTexture("Textures/noise-x3-512.png");                        
         noise.setWrap(Texture.WrapMode.Repeat);
  
-        treeParameters = getState(TreeParametersState.class).getTreeParametersRef();
+        // Only the mesh stages require regenerating the trees.  The
+        // rest can be applied to the existing geometry.
+        TreeParametersState parameters = getState(TreeParametersState.class); 
+        treeParameters = parameters.getTreeParametersRef(TreeStage.Skeleton, TreeStage.TrunkMesh, 
+                                                         TreeStage.Leaves);
+        windParameters = parameters.getTreeParametersRef(TreeStage.MaterialUniforms);
+        lodParameters = parameters.getTreeParametersRef(TreeStage.LodSwitch);
         
         forestGrid = new ForestGrid(treeParameters.get(), 
-                                getTreeMaterial(),
-                                getWireMaterial(),
-                                getLeafMaterial(),
-                                getFlatMaterial(),
-                                getImpostorMaterial(),
-                                getState(BuilderState.class).getBuilder());
+                                    parameters.getSkeletonCache(),
+                                    getMaterials(),
+                                    getState(BuilderState.class).getBuilder());
+        forestGrid.setCamera(app.getCamera());
  
         mainTree = forestGrid.getTree(0, 0);
         
@@ -225,19 +270,30 @@ public class ForestGridState extends BaseAppState {
         cb.setChecked(true);
  
         options.addOptionToggle("Wind", this, "setUseWind");               
+        cb = options.addOptionToggle("Edit Preview", this, "setUsePreview");
+        cb.setChecked(usePreview);
+        if( getMaterials().isInstancingSupported() ) {
+            options.addOptionToggle("Instanced", forestGrid, "setInstanced");
+        } else {
+            log.info("Tree materials do not support instancing, not offering the Instanced option.");
+        }
+        options.addOptionToggle("Paged", forestGrid, "setPaged");
+        options.addOptionToggle("Batch Impostors", forestGrid, "setBatchImpostors");
         
         PropertyPanel properties = new PropertyPanel("glass");
         gridParameters = properties.createReference();
         options.getParameterTabs().addTab("Grid", properties);
         
-        properties.addIntProperty("Width", forestGrid, "width", 1, 10, 1);
-        properties.addIntProperty("Height", forestGrid, "height", 1, 10, 1);
+        properties.addIntProperty("Width", forestGrid, "width", 1, 200, 1);
+        properties.addIntProperty("Height", forestGrid, "height", 1, 200, 1);
         properties.addFloatProperty("Spacing (m)", forestGrid, "spacing", 0.3f, 40, 0.1f);
         properties.addIntProperty("Seed Range", forestGrid, "seedRange", 1, 100, 1);
         properties.addFloatProperty("Rotation Variation (*)", forestGrid, "rotationVariation", 0, 1, 0.01f);
         properties.addFloatProperty("Lean Variation (*)", forestGrid, "leanVariation", 0, 1, 0.01f);
         properties.addFloatProperty("Scale Variation (*)", forestGrid, "scaleVariation", 0, 1, 0.01f);
         properties.addFloatProperty("Position Variation (*)", forestGrid, "positionVariation", 0, 1, 0.01f);
+        properties.addIntProperty("Variation Seed", forestGrid, "gridSeed", 0, 1000, 1);
+        properties.addFloatProperty("Page Distance (m)", forestGrid, "pageDistance", 50, 2000, 10);
         
         
         // Add a stats panel to the bottom... could have done it as another
@@ -245,6 +301,7 @@ public class ForestGridState extends BaseAppState {
         Container stats = options.getContents().addChild(new Container(new SpringGridLayout(), new ElementId("stats"), "glass"));
         vertsLabel = stats.addChild(new Label("verts:", "glass"));
         trisLabel = stats.addChild(new Label("tris:", "glass"), 1);
+        forestLabel = stats.addChild(new Label("forest:", "glass"));
                         
     }    
 
@@ -274,8 +331,40 @@ public class ForestGridState extends BaseAppState {
         }
         nextUpdateCheck = 0;
         
-        boolean changed = treeParameters.update();
+        if( forestGrid.getStats().getVersion() != lastStatsVersion ) {
+            refreshForestStats();
+        }
+        
+        boolean changed = false;
+        if( treeParameters.update() ) {
+            if( usePreview ) {
+                // Just rebuild a cheap version of the main tree until
+                // the edits stop coming in
+                lastEditTime = time;
+                previewing = true;
+                building.setObject(true);
+                forestGrid.preview();
+                refreshStats();
+                refreshWindParms();
+            } else {
+                changed = true;
+            }
+        }
+        if( windParameters.update() ) {
+            refreshWindParms();
+        }
+        if( lodParameters.update() ) {
+            forestGrid.refreshLodDistances();
+        }
         if( gridParameters.update() ) {
+            // The grid applies its own changes as the properties are 
+            // set and only rebuilds the trees whose seeds changed so
+            // there is nothing to regenerate here.
+            building.setObject(true);
+        }
+        if( previewing && (changed || time - lastEditTime > previewSettleTime) ) {
+            // Time to build the real thing
+            previewing = false;
             changed = true;
         }
          
@@ -287,9 +376,18 @@ public class ForestGridState extends BaseAppState {
             refreshWindParms();
         }
         
-        if( building.getObject() && getState(BuilderState.class).getBuilder().getPendingCount() == 0 ) {
+        // The stats aren't meaningful until the main tree and everything
+        // in view is built.  Trees out of view may still be building.
+        if( building.getObject() && !previewing && !mainTree.isBuilding()
+            && (getState(BuilderState.class).getBuilder().getPendingCount() == 0
+                || forestGrid.getVisiblePendingCount() == 0) ) {
             building.setObject(false);
             refreshStats();
+            if( log.isDebugEnabled() ) {
+                log.debug("Build complete, meshes:" + forestGrid.getMeshCache().getSize() 
+                            + " " + forestGrid.getMeshCache().getSkeletonCache()
+                            + " " + BufferPool.getInstance());
+            }
         }
     }
 
@@ -308,6 +406,24 @@ public class ForestGridState extends BaseAppState {
         }        
     }
     
+    protected void refreshForestStats() {
+        ForestStats stats = forestGrid.getStats();
+        lastStatsVersion = stats.getVersion();
+        
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("visible trees: %d  verts: %d  tris: %d  geoms: %d (%d transparent)", 
+                                stats.getTreeCount(), stats.getVertexCount(), 
+                                stats.getTriangleCount(), stats.getGeometryCount(), 
+                                stats.getTransparentCount()));
+        for( int i = 0; i < stats.getLevelCount(); i++ ) {
+            sb.append(String.format("\n  LOD %d: %d trees  verts: %d  tris: %d  geoms: %d (%d transparent)", 
+                                    i, stats.getTreeCount(i), stats.getVertexCount(i), 
+                                    stats.getTriangleCount(i), stats.getGeometryCount(i),
+                                    stats.getTransparentCount(i)));
+        }
+        forestLabel.setText(sb.toString());
+    }
+    
     protected void refreshWindParms() {
         if( treeMaterial == null ) {
             // too soon
@@ -328,9 +444,36 @@ public class ForestGridState extends BaseAppState {
         flatMaterial.setFloat("BranchFlexibility", tp.getBranchFlexibility());
  
         impostorMaterial.setFloat("TrunkFlexibility", tp.getTrunkFlexibility());
-       
+        markMaterialsChanged();
+    }
+ 
+    /**
+     *  Lets any instancing variants know that the shared materials 
+     *  have been modified.
+     */   
+    protected void markMaterialsChanged() {
+        if( materials != null ) {
+            materials.markChanged();
+        }
     }
     
+    /**
+     *  Returns the registry of materials shared by all of the
+     *  trees in the forest.
+     */
+    public TreeMaterials getMaterials() {
+        if( materials != null ) {
+            return materials;
+        }
+        materials = new TreeMaterials(getTreeMaterial(), 
+                                      getWireMaterial(), 
+                                      getLeafMaterial(),
+                                      getFlatMaterial(),
+                                      getImpostorMaterial(),
+                                      createImpostorBatchMaterial());
+        return materials;
+    }
+ 
     public Material getTreeMaterial() {
         if( treeMaterial != null ) {
             return treeMaterial;
@@ -397,6 +540,18 @@ public class ForestGridState extends BaseAppState {
         return impostorMaterial;
     }
     
+    /**
+     *  Creates the material for batched impostors.  Its textures and other
+     *  settings are kept in sync with the impostor material by the
+     *  TreeMaterials.
+     */
+    protected Material createImpostorBatchMaterial() {
+        Material mat = new Material(getApplication().getAssetManager(), "MatDefs/ImpostorBatch.j3md");
+        mat.getAdditionalRenderState().setFaceCullMode(FaceCullMode.Off);
+        mat.getAdditionalRenderState().setBlendMode(BlendMode.Alpha);
+        return mat;
+    }
+    
     public Material getWireMaterial() {
         if( wireMaterial != null ) {
             return wireMaterial;
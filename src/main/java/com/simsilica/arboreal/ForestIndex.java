@@ -0,0 +1,373 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+ 
+package com.simsilica.arboreal;
+
+import com.jme3.bounding.BoundingBox;
+import com.jme3.bounding.BoundingSphere;
+import com.jme3.bounding.BoundingVolume;
+import com.jme3.collision.CollisionResult;
+import com.jme3.collision.CollisionResults;
+import com.jme3.math.FastMath;
+import com.jme3.math.Ray;
+import com.jme3.math.Transform;
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.Camera;
+import com.simsilica.arboreal.TreeMeshes.LevelMeshes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ *  A loose grid spatial index over the bounds of the trees in a forest.
+ *  Each tree is placed in the x,z cell that contains the center of its
+ *  bounds and each cell keeps the merged bounds of its trees.  Queries
+ *  only have to look at the trees in cells that pass, so frustum, radius,
+ *  and ray queries don't have to check every tree.
+ *
+ *  <p>All bounds and query parameters are in the local space of the
+ *  forest's root node, the same space as the tree nodes' local
+ *  transforms.  Trees without any built levels are not indexed.</p>
+ *
+ *  @author    Paul Speed
+ */
+public class ForestIndex {
+
+    private float cellSize;
+    private final Map<Long, Cell> cells = new HashMap<Long, Cell>();
+    private final Map<TreeBuilderReference, Entry> entries = new IdentityHashMap<TreeBuilderReference, Entry>();
+    
+    // The largest distance that any tree's bounds extend past the
+    // cell that contains its center.  Only grows until cleared.
+    private float maxExtent;
+ 
+    private final Transform temp = new Transform();
+    private BoundingVolume leafBound;
+    private BoundingVolume worldBound;
+    private final CollisionResults collisions = new CollisionResults();
+    
+    public ForestIndex( float cellSize ) {
+        this.cellSize = cellSize;
+    }
+ 
+    /**
+     *  Sets the size of the index cells in x and z.  Changing it 
+     *  reindexes all of the trees.
+     */   
+    public void setCellSize( float cellSize ) {
+        if( this.cellSize == cellSize ) {
+            return;
+        }
+        this.cellSize = cellSize;
+        List<Entry> all = new ArrayList<Entry>(entries.values());
+        cells.clear();
+        maxExtent = 0;
+        for( Entry entry : all ) {
+            entry.cell = null;
+            insert(entry);
+        }
+    }
+    
+    public float getCellSize() {
+        return cellSize;
+    }
+ 
+    /**
+     *  Recalculates the bounds of the specified tree from its current
+     *  transform and displayed level and moves it to the right cell.
+     *  Should be called whenever a tree moves, changes scale, or 
+     *  displays a different level.
+     */   
+    public void update( TreeBuilderReference tree ) {
+        LevelMeshes meshes = tree.getActiveLevelMeshes();
+        if( meshes == null || meshes.treeMesh == null || meshes.treeMesh.getBound() == null ) {
+            remove(tree);
+            return;
+        }
+        
+        Entry entry = entries.get(tree);
+        if( entry == null ) {
+            entry = new Entry(tree);
+            entries.put(tree, entry);
+        } else {
+            removeFromCell(entry);
+        }
+ 
+        temp.loadIdentity();
+        temp.setTranslation(0, meshes.yOffset, 0);
+        temp.combineWithParent(tree.getTreeNode().getLocalTransform());
+        entry.bound = meshes.treeMesh.getBound().transform(temp, entry.bound);
+        if( meshes.leafMesh != null && meshes.leafMesh.getBound() != null ) {
+            leafBound = meshes.leafMesh.getBound().transform(temp, leafBound);
+            entry.bound.mergeLocal(leafBound);
+        }
+        insert(entry);
+    }
+    
+    /**
+     *  Returns true if the specified tree has bounds in the index.
+     */
+    public boolean contains( TreeBuilderReference tree ) {
+        return entries.containsKey(tree);
+    }
+ 
+    public void remove( TreeBuilderReference tree ) {
+        Entry entry = entries.remove(tree);
+        if( entry != null ) {
+            removeFromCell(entry);
+        }
+    }
+    
+    public void clear() {
+        entries.clear();
+        cells.clear();
+        maxExtent = 0;
+    }
+ 
+    public int size() {
+        return entries.size();
+    }
+ 
+    public int getCellCount() {
+        return cells.size();
+    }
+ 
+    /**
+     *  Adds all of the trees whose bounds are at least partially inside 
+     *  the camera's frustum to the results.  toWorld is the world transform
+     *  of the forest's root node.
+     */       
+    public List<TreeBuilderReference> getTrees( Camera camera, Transform toWorld, 
+                                                List<TreeBuilderReference> results ) {
+        if( results == null ) {
+            results = new ArrayList<TreeBuilderReference>();
+        }
+        int planeState = camera.getPlaneState();
+        for( Cell cell : cells.values() ) {
+            BoundingVolume bound = cell.getBound();
+            if( bound == null ) {
+                continue;
+            }
+            Camera.FrustumIntersect test = contains(camera, bound, toWorld);
+            if( test == Camera.FrustumIntersect.Outside ) {
+                continue;
+            }
+            for( Entry entry : cell.entries ) {
+                if( test == Camera.FrustumIntersect.Inside 
+                    || contains(camera, entry.bound, toWorld) != Camera.FrustumIntersect.Outside ) {
+                    results.add(entry.tree);
+                }
+            }
+        }
+        camera.setPlaneState(planeState);
+        return results;
+    }
+ 
+    private Camera.FrustumIntersect contains( Camera camera, BoundingVolume bound, Transform toWorld ) {
+        worldBound = bound.transform(toWorld, worldBound);
+        camera.setPlaneState(0);
+        return camera.contains(worldBound);
+    }
+ 
+    /**
+     *  Adds all of the trees whose bounds are at least partially within
+     *  the specified radius of the center to the results.
+     */   
+    public List<TreeBuilderReference> getTrees( Vector3f center, float radius, 
+                                                List<TreeBuilderReference> results ) {
+        if( results == null ) {
+            results = new ArrayList<TreeBuilderReference>();
+        }
+        
+        // Only the cells that could contain a tree center within
+        // reach need to be checked.
+        float reach = radius + maxExtent;
+        int xMin = cellIndex(center.x - reach);
+        int xMax = cellIndex(center.x + reach);
+        int zMin = cellIndex(center.z - reach);
+        int zMax = cellIndex(center.z + reach);
+        if( ((long)xMax - xMin + 1) * ((long)zMax - zMin + 1) > cells.size() ) {
+            // Cheaper to just look at every cell
+            for( Cell cell : cells.values() ) {
+                addTrees(cell, center, radius, results);
+            }
+        } else {
+            for( int x = xMin; x <= xMax; x++ ) {
+                for( int z = zMin; z <= zMax; z++ ) {
+                    Cell cell = cells.get(key(x, z));
+                    if( cell != null ) {
+                        addTrees(cell, center, radius, results);
+                    }
+                }
+            }
+        }
+        return results;
+    }
+    
+    private void addTrees( Cell cell, Vector3f center, float radius, List<TreeBuilderReference> results ) {
+        BoundingVolume bound = cell.getBound();
+        if( bound == null || bound.distanceToEdge(center) > radius ) {
+            return;
+        }
+        for( Entry entry : cell.entries ) {
+            if( entry.bound.distanceToEdge(center) <= radius ) {
+                results.add(entry.tree);
+            }
+        }
+    }
+ 
+    /**
+     *  Returns the tree whose bounds are closest along the specified ray 
+     *  or null if the ray doesn't hit any tree bounds.  This only checks
+     *  the bounds and not the actual tree geometry.
+     */   
+    public TreeBuilderReference pick( Ray ray ) {
+        TreeBuilderReference result = null;
+        float closest = Float.POSITIVE_INFINITY;
+        for( Cell cell : cells.values() ) {
+            BoundingVolume bound = cell.getBound();
+            if( bound == null || !bound.intersects(ray) ) {
+                continue;
+            }
+            for( Entry entry : cell.entries ) {
+                collisions.clear();
+                if( entry.bound.collideWith(ray, collisions) == 0 ) {
+                    continue;
+                }
+                CollisionResult hit = collisions.getClosestCollision();
+                if( hit.getDistance() < closest ) {
+                    closest = hit.getDistance();
+                    result = entry.tree;
+                }
+            }
+        }
+        collisions.clear();
+        return result;
+    }
+ 
+    private int cellIndex( float f ) {
+        return (int)FastMath.floor(f / cellSize);
+    }
+ 
+    private static long key( int x, int z ) {
+        return ((long)x << 32) | (z & 0xffffffffL);
+    }
+ 
+    private void insert( Entry entry ) {
+        Vector3f center = entry.bound.getCenter();
+        int x = cellIndex(center.x);
+        int z = cellIndex(center.z);
+        long key = key(x, z);
+        Cell cell = cells.get(key);
+        if( cell == null ) {
+            cell = new Cell(key);
+            cells.put(key, cell);
+        }
+        cell.entries.add(entry);
+        cell.dirty = true;
+        entry.cell = cell;
+ 
+        // The center is inside the cell so the bound can only reach
+        // past the cell's edges by its own half size.
+        maxExtent = Math.max(maxExtent, getHalfExtent(entry.bound));
+    }
+ 
+    private float getHalfExtent( BoundingVolume bound ) {
+        if( bound instanceof BoundingBox ) {
+            BoundingBox box = (BoundingBox)bound;
+            return Math.max(box.getXExtent(), box.getZExtent());
+        } else if( bound instanceof BoundingSphere ) {
+            return ((BoundingSphere)bound).getRadius();
+        }
+        return Float.POSITIVE_INFINITY;
+    }
+ 
+    private void removeFromCell( Entry entry ) {
+        Cell cell = entry.cell;
+        if( cell == null ) {
+            return;
+        }
+        cell.entries.remove(entry);
+        cell.dirty = true;
+        if( cell.entries.isEmpty() ) {
+            cells.remove(cell.key);
+        }
+        entry.cell = null;
+    }
+ 
+    private static class Entry {
+        TreeBuilderReference tree;
+        BoundingVolume bound;
+        Cell cell;
+        
+        public Entry( TreeBuilderReference tree ) {
+            this.tree = tree;
+        }
+    }
+    
+    private static class Cell {
+        long key;
+        List<Entry> entries = new ArrayList<Entry>();
+        BoundingVolume bound;
+        boolean dirty;
+        
+        public Cell( long key ) {
+            this.key = key;
+        }
+ 
+        /**
+         *  Returns the merged bounds of all of the trees in this cell,
+         *  recalculating it if the cell has changed.
+         */       
+        public BoundingVolume getBound() {
+            if( dirty ) {
+                dirty = false;
+                bound = null;
+                for( Entry entry : entries ) {
+                    if( bound == null ) {
+                        bound = entry.bound.clone(null);
+                    } else {
+                        bound.mergeLocal(entry.bound);
+                    }
+                }
+            }
+            return bound;
+        }
+    }
+}
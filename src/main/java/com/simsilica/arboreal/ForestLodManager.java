@@ -0,0 +1,254 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal;
+
+import com.jme3.math.Vector3f;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+
+/**
+ *  Picks the level of detail for every tree in a forest in one pass
+ *  instead of having each tree's own control do its own distance check
+ *  every frame.  Tree positions are kept in flat arrays and compared
+ *  against squared switch distances.  A tree only moves to a farther
+ *  level once it is past the switch distance plus the hysteresis band
+ *  and only moves back once it is inside the switch distance minus the
+ *  band so that trees sitting right on a boundary don't thrash.
+ *
+ *  <p>Trees are only told about their level when it actually changes.
+ *  The number of trees at each level from the last update is available
+ *  from getLevelCount().</p>
+ *
+ *  @author    Paul Speed
+ */
+public class ForestLodManager {
+
+    private TreeBuilderReference[] trees = new TreeBuilderReference[16];
+    private float[] xs = new float[16];
+    private float[] ys = new float[16];
+    private float[] zs = new float[16];
+    private int[] lods = new int[16];
+    private int size;
+    private final Map<TreeBuilderReference, Integer> index = new IdentityHashMap<TreeBuilderReference, Integer>(); 
+
+    private float hysteresis = 0.05f;
+    private float[] distances = new float[0];
+    private float[] outSquared = new float[0];
+    private float[] inSquared = new float[0];
+    private int[] counts = new int[0];
+    
+    public ForestLodManager() {
+    }
+ 
+    /**
+     *  Sets the size of the hysteresis band as a fraction of each
+     *  switch distance.
+     */   
+    public void setHysteresis( float hysteresis ) {
+        this.hysteresis = hysteresis;
+        refreshBands();
+    }
+    
+    public float getHysteresis() {
+        return hysteresis;
+    }
+ 
+    /**
+     *  Sets the switch distances for each level of detail.  The first
+     *  level's distance is generally 0.
+     */   
+    public void setDistances( float[] distances ) {
+        if( Arrays.equals(this.distances, distances) ) {
+            return;
+        }
+        this.distances = distances.clone();
+        if( counts.length != distances.length ) {
+            counts = new int[distances.length];
+        }
+        refreshBands();
+    }
+ 
+    /**
+     *  Convenience method that sets the switch distances from the
+     *  specified tree parameters.
+     */   
+    public void refreshDistances( TreeParameters treeParameters ) {
+        int count = treeParameters.getLodCount();
+        if( distances.length == count ) {
+            // Avoid creating garbage every frame when nothing has changed
+            boolean same = true;
+            for( int i = 0; i < count; i++ ) {
+                if( distances[i] != treeParameters.getLod(i).distance ) {
+                    same = false;
+                    break;
+                }
+            }
+            if( same ) {
+                return;
+            }
+        }
+        float[] array = new float[count];
+        for( int i = 0; i < count; i++ ) {
+            array[i] = treeParameters.getLod(i).distance;
+        }
+        setDistances(array);
+    }
+ 
+    protected void refreshBands() {
+        outSquared = new float[distances.length];
+        inSquared = new float[distances.length];
+        for( int i = 0; i < distances.length; i++ ) {
+            float out = distances[i] * (1 + hysteresis);
+            float in = distances[i] * (1 - hysteresis);
+            outSquared[i] = out * out;
+            inSquared[i] = in * in;
+        }
+    }
+ 
+    public void add( TreeBuilderReference tree ) {
+        if( index.containsKey(tree) ) {
+            return;
+        }
+        if( size == trees.length ) {
+            int newSize = size * 2;
+            trees = Arrays.copyOf(trees, newSize);
+            xs = Arrays.copyOf(xs, newSize);
+            ys = Arrays.copyOf(ys, newSize);
+            zs = Arrays.copyOf(zs, newSize);
+            lods = Arrays.copyOf(lods, newSize);
+        }
+        trees[size] = tree;
+        lods[size] = -1;
+        index.put(tree, size);
+        setPosition(size, tree);
+        size++;
+    }
+    
+    public void remove( TreeBuilderReference tree ) {
+        Integer i = index.remove(tree);
+        if( i == null ) {
+            return;
+        }
+        
+        // Move the last one into the hole
+        size--;
+        if( i != size ) {
+            trees[i] = trees[size];
+            xs[i] = xs[size];
+            ys[i] = ys[size];
+            zs[i] = zs[size];
+            lods[i] = lods[size];
+            index.put(trees[i], i);
+        }
+        trees[size] = null;
+    }
+    
+    public void clear() {
+        Arrays.fill(trees, 0, size, null);
+        index.clear();
+        size = 0;
+    }
+    
+    public int getTreeCount() {
+        return size;
+    }
+ 
+    /**
+     *  Copies the current positions of all of the tree nodes.  Should
+     *  be called whenever the tree transforms have changed.
+     */   
+    public void refreshPositions() {
+        for( int i = 0; i < size; i++ ) {
+            setPosition(i, trees[i]);
+        }
+    }
+ 
+    private void setPosition( int i, TreeBuilderReference tree ) {
+        Vector3f pos = tree.getTreeNode().getLocalTranslation();
+        xs[i] = pos.x;
+        ys[i] = pos.y;
+        zs[i] = pos.z;
+    }
+ 
+    /**
+     *  Returns the number of trees that were at the specified level of
+     *  detail as of the last update.
+     */
+    public int getLevelCount( int lod ) {
+        return lod < counts.length ? counts[lod] : 0;
+    }
+ 
+    /**
+     *  Picks the level of detail for all trees based on the specified
+     *  location which should be in the same space as the tree nodes'
+     *  local translations.
+     */   
+    public void update( Vector3f location ) {
+        int levels = distances.length;
+        if( levels == 0 ) {
+            return;
+        }
+        Arrays.fill(counts, 0);
+        
+        float x = location.x;
+        float y = location.y;
+        float z = location.z;
+        for( int i = 0; i < size; i++ ) {
+            float dx = xs[i] - x;
+            float dy = ys[i] - y;
+            float dz = zs[i] - z;
+            float distSq = dx * dx + dy * dy + dz * dz;
+            
+            int current = lods[i];
+            int lod = Math.max(0, Math.min(current, levels - 1));
+            while( lod + 1 < levels && distSq > outSquared[lod + 1] ) {
+                lod++;
+            }
+            while( lod > 0 && distSq < inSquared[lod] ) {
+                lod--;
+            }
+            counts[lod]++;
+            
+            if( lod != current ) {
+                lods[i] = lod;
+                trees[i].setActiveLod(lod);
+            }
+        }
+    }
+}
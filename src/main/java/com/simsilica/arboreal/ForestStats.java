@@ -0,0 +1,211 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+ 
+package com.simsilica.arboreal;
+
+import com.jme3.scene.Mesh;
+import com.simsilica.arboreal.LevelOfDetailParameters.ReductionType;
+import com.simsilica.arboreal.TreeMeshes.LevelMeshes;
+import java.util.Arrays;
+
+
+/**
+ *  Aggregated render statistics for a whole forest broken down by level
+ *  of detail.  The counts are accumulated between begin() and end()
+ *  from the levels that are currently visible.  The published values
+ *  and the version only change when end() finds that something is
+ *  actually different so displays can cheaply check every frame.
+ *
+ *  <p>The geometry counts are per tree.  When the forest is drawn 
+ *  instanced or with batched impostors then the number of draw calls 
+ *  will be lower but the vertices and triangles are the same.</p>
+ *
+ *  @author    Paul Speed
+ */
+public class ForestStats {
+
+    private static final int TREES = 0;
+    private static final int VERTICES = 1;
+    private static final int TRIANGLES = 2;
+    private static final int GEOMETRIES = 3;
+    private static final int TRANSPARENT = 4;
+    private static final int FIELD_COUNT = 5;
+
+    // The published counts and the ones being accumulated, each
+    // as FIELD_COUNT values per level.
+    private long[] counts = new long[0];
+    private long[] working = new long[0];
+    private int levels;
+    private long version;
+    
+    public ForestStats() {
+    }
+ 
+    /**
+     *  Starts a new sample for the specified number of levels of detail.
+     */   
+    public void begin( int levelCount ) {
+        int size = levelCount * FIELD_COUNT;
+        if( working.length != size ) {
+            working = new long[size];
+        } else {
+            Arrays.fill(working, 0);
+        }
+    }
+ 
+    /**
+     *  Adds the geometry of one visible tree at the specified level 
+     *  of detail to the current sample.
+     */   
+    public void add( int lod, LevelMeshes meshes ) {
+        int base = lod * FIELD_COUNT;
+        if( base < 0 || base >= working.length ) {
+            return;
+        }
+        working[base + TREES]++;
+        addMesh(base, meshes.treeMesh, meshes.reduction == ReductionType.Impostor);
+        
+        // Leaves are always in the transparent bucket
+        addMesh(base, meshes.leafMesh, true);
+    }
+    
+    private void addMesh( int base, Mesh mesh, boolean transparent ) {
+        if( mesh == null ) {
+            return;
+        }
+        working[base + VERTICES] += mesh.getVertexCount();
+        working[base + TRIANGLES] += mesh.getTriangleCount();
+        working[base + GEOMETRIES]++;
+        if( transparent ) {
+            working[base + TRANSPARENT]++;
+        }
+    }
+ 
+    /**
+     *  Finishes the current sample and publishes it if it is 
+     *  different from the last one.
+     */   
+    public void end() {
+        if( Arrays.equals(counts, working) ) {
+            return;
+        }
+        
+        // Swap so that neither array needs to be reallocated
+        long[] temp = counts;
+        counts = working;
+        working = temp;
+        levels = counts.length / FIELD_COUNT;
+        version++;
+    }
+ 
+    /**
+     *  Returns a version number that is incremented whenever the
+     *  published statistics change.
+     */   
+    public long getVersion() {
+        return version;
+    }
+    
+    public int getLevelCount() {
+        return levels;
+    }
+ 
+    public int getTreeCount( int lod ) {
+        return (int)get(lod, TREES);
+    }
+    
+    public long getVertexCount( int lod ) {
+        return get(lod, VERTICES);
+    }
+    
+    public long getTriangleCount( int lod ) {
+        return get(lod, TRIANGLES);
+    }
+    
+    public int getGeometryCount( int lod ) {
+        return (int)get(lod, GEOMETRIES);
+    }
+ 
+    /**
+     *  Returns the number of geometries at the specified level that 
+     *  are rendered in the transparent bucket.
+     */   
+    public int getTransparentCount( int lod ) {
+        return (int)get(lod, TRANSPARENT);
+    }
+ 
+    public int getTreeCount() {
+        return (int)total(TREES);
+    }
+    
+    public long getVertexCount() {
+        return total(VERTICES);
+    }
+    
+    public long getTriangleCount() {
+        return total(TRIANGLES);
+    }
+    
+    public int getGeometryCount() {
+        return (int)total(GEOMETRIES);
+    }
+    
+    public int getTransparentCount() {
+        return (int)total(TRANSPARENT);
+    }
+ 
+    private long get( int lod, int field ) {
+        if( lod < 0 || lod >= levels ) {
+            return 0;
+        }
+        return counts[lod * FIELD_COUNT + field];
+    }
+    
+    private long total( int field ) {
+        long result = 0;
+        for( int i = 0; i < levels; i++ ) {
+            result += counts[i * FIELD_COUNT + field];
+        }
+        return result;
+    }
+ 
+    @Override
+    public String toString() {
+        return "ForestStats[trees=" + getTreeCount() + ", verts=" + getVertexCount() 
+                    + ", tris=" + getTriangleCount() + ", geoms=" + getGeometryCount()
+                    + ", transparent=" + getTransparentCount() + "]";
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+ 
+package com.simsilica.arboreal;
+
+import com.jme3.renderer.Renderer;
+import com.jme3.texture.FrameBuffer;
+import java.nio.ByteBuffer;
+import org.lwjgl.opengl.ContextCapabilities;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL12;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL21;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL32;
+import org.lwjgl.opengl.GLContext;
+import org.lwjgl.opengl.GLSync;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ *  Reads the color buffer of a FrameBuffer back to the CPU without
+ *  stalling the render thread.  Each request copies the frame buffer into
+ *  one of two pixel pack buffers and drops a fence behind it.  poll()
+ *  checks the fence without waiting and only copies the pixels out once
+ *  the GPU is done, usually a frame or two later.  With two buffers a new
+ *  request can be made while the last one is still in flight in which
+ *  case only the newest result is delivered.
+ *
+ *  <p>All methods must be called on the render thread.  The pixels are
+ *  read as BGRA bytes, the same as Renderer.readFrameBuffer().  If the
+ *  context doesn't support pixel buffers and fences then requests fall
+ *  back to a synchronous read.  The pixel buffers and fences are raw
+ *  LWJGL 2 calls so on any other backend the reads go synchronously
+ *  through the Renderer instead.</p>
+ *
+ *  @author    Paul Speed
+ */
+public class FrameBufferReader {
+
+    static Logger log = LoggerFactory.getLogger(FrameBufferReader.class);
+ 
+    private final int[] buffers = new int[2];
+    private final GLSync[] fences = new GLSync[2];
+    private final long[] requests = new long[2];
+    private int bufferSize;
+    private int next;
+    private long lastRequest;
+    private ByteBuffer target;
+    private boolean complete;
+    private Boolean supported;
+    private Boolean lwjgl2;
+    
+    public FrameBufferReader() {
+    }
+ 
+    /**
+     *  Returns true if the current context is an LWJGL 2 context, ie: 
+     *  the raw GL calls this class makes will go to the same context 
+     *  the renderer is using.
+     */
+    public boolean isLwjgl2() {
+        if( lwjgl2 == null ) {
+            try {
+                lwjgl2 = GLContext.getCapabilities() != null;
+            } catch( LinkageError e ) {
+                // LWJGL 2 isn't on the classpath
+                lwjgl2 = false;
+            } catch( RuntimeException e ) {
+                // LWJGL 2 is there but has no context on this thread
+                lwjgl2 = false;
+            }
+            if( !lwjgl2 ) {
+                log.warn("Not running on LWJGL 2, frame buffer reads will go through the renderer.");
+            }
+        }
+        return lwjgl2;
+    }
+ 
+    /**
+     *  Returns true if reads are actually asynchronous in the current
+     *  context.
+     */   
+    public boolean isAsync() {
+        if( supported == null ) {
+            if( !isLwjgl2() ) {
+                supported = false;
+                return supported;
+            }
+            ContextCapabilities caps = GLContext.getCapabilities();
+            supported = caps.OpenGL21 && caps.OpenGL32;
+            if( !supported ) {
+                log.warn("Pixel buffers or fences not supported, frame buffer reads will be synchronous.");
+            }
+        }
+        return supported;
+    }
+ 
+    /**
+     *  Starts reading the specified attachment of the frame buffer 
+     *  into the target buffer.  This should be called after the frame
+     *  buffer has been rendered, ie: from postRender().  The target's limit
+     *  must be the size of the pixels, which may be less than its capacity
+     *  for pooled buffers.  The target must remain valid until poll() 
+     *  returns true or another request is made.
+     */   
+    public void request( Renderer renderer, FrameBuffer fb, int attachment, ByteBuffer target ) {
+        this.target = target;
+        this.complete = false;
+        lastRequest++;
+ 
+        if( !isLwjgl2() ) {
+            readSync(renderer, fb, attachment, target);
+            return;
+        }
+ 
+        renderer.setFrameBuffer(fb);
+        GL11.glReadBuffer(GL30.GL_COLOR_ATTACHMENT0 + attachment);
+        try {
+            if( !isAsync() ) {
+                target.rewind();
+                GL11.glReadPixels(0, 0, fb.getWidth(), fb.getHeight(), 
+                                  GL12.GL_BGRA, GL11.GL_UNSIGNED_BYTE, target);
+                complete = true;
+                return;
+            }
+            
+            int size = fb.getWidth() * fb.getHeight() * 4;
+            if( size != bufferSize ) {
+                release();
+                bufferSize = size;
+            }
+            
+            int slot = next;
+            next = (next + 1) % buffers.length;
+            if( fences[slot] != null ) {
+                // Still in flight but it's older than what we're about
+                // to request so we don't care about it anymore.
+                GL32.glDeleteSync(fences[slot]);
+                fences[slot] = null;
+            }
+            if( buffers[slot] == 0 ) {
+                buffers[slot] = GL15.glGenBuffers();
+                GL15.glBindBuffer(GL21.GL_PIXEL_PACK_BUFFER, buffers[slot]);
+                GL15.glBufferData(GL21.GL_PIXEL_PACK_BUFFER, size, GL15.GL_STREAM_READ);
+            } else {
+                GL15.glBindBuffer(GL21.GL_PIXEL_PACK_BUFFER, buffers[slot]);
+            }
+            
+            // With a pack buffer bound this returns right away
+            GL11.glReadPixels(0, 0, fb.getWidth(), fb.getHeight(), 
+                              GL12.GL_BGRA, GL11.GL_UNSIGNED_BYTE, 0L);
+            GL15.glBindBuffer(GL21.GL_PIXEL_PACK_BUFFER, 0);
+            
+            fences[slot] = GL32.glFenceSync(GL32.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+            requests[slot] = lastRequest;
+        } finally {
+            // Leave the read buffer the way the renderer expects it
+            // which is the frame buffer's current target
+            GL11.glReadBuffer(GL30.GL_COLOR_ATTACHMENT0 + fb.getTargetIndex());
+        }
+    }
+ 
+    /**
+     *  Returns true once the pixels from the last request have been
+     *  copied into the target buffer.  Never waits on the GPU.
+     */   
+    public boolean poll() {
+        if( complete || target == null ) {
+            return complete;
+        }
+        for( int slot = 0; slot < buffers.length; slot++ ) {
+            if( fences[slot] == null || requests[slot] != lastRequest ) {
+                continue;
+            }
+            int status = GL32.glClientWaitSync(fences[slot], GL32.GL_SYNC_FLUSH_COMMANDS_BIT, 0);
+            if( status == GL32.GL_TIMEOUT_EXPIRED ) {
+                return false;
+            }
+            GL32.glDeleteSync(fences[slot]);
+            fences[slot] = null;
+            if( status == GL32.GL_WAIT_FAILED ) {
+                // The fence is no good so we can't know when the GPU is
+                // done.  Reading the buffer will just wait for it.  The
+                // fences will keep failing so later requests are 
+                // read synchronously.
+                log.error("Failed waiting on frame buffer read, switching to synchronous reads");
+                supported = false;
+            }
+            
+            target.rewind();
+            GL15.glBindBuffer(GL21.GL_PIXEL_PACK_BUFFER, buffers[slot]);
+            GL15.glGetBufferSubData(GL21.GL_PIXEL_PACK_BUFFER, 0, target);
+            GL15.glBindBuffer(GL21.GL_PIXEL_PACK_BUFFER, 0);
+            target.rewind();
+            complete = true;
+        }
+        return complete;
+    }
+ 
+    /**
+     *  Reads the attachment through the renderer which reads the frame 
+     *  buffer's current target.
+     */
+    protected void readSync( Renderer renderer, FrameBuffer fb, int attachment, ByteBuffer target ) {
+        int lastTarget = fb.getTargetIndex();
+        fb.setTargetIndex(attachment);
+        fb.setUpdateNeeded();
+        try {
+            target.rewind();
+            renderer.readFrameBuffer(fb, target);
+            target.rewind();
+        } finally {
+            fb.setTargetIndex(lastTarget);
+            fb.setUpdateNeeded();
+        }
+        complete = true;
+    }
+ 
+    public boolean isComplete() {
+        return complete;
+    }
+ 
+    /**
+     *  Deletes the pixel buffers and any outstanding fences.
+     */   
+    public void release() {
+        for( int slot = 0; slot < buffers.length; slot++ ) {
+            if( fences[slot] != null ) {
+                GL32.glDeleteSync(fences[slot]);
+                fences[slot] = null;
+            }
+            if( buffers[slot] != 0 ) {
+                GL15.glDeleteBuffers(buffers[slot]);
+                buffers[slot] = 0;
+            }
+        }
+        bufferSize = 0;
+    }
+}
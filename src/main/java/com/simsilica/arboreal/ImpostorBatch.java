@@ -0,0 +1,348 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal;
+
+import com.jme3.bounding.BoundingBox;
+import com.jme3.material.Material;
+import com.jme3.math.FastMath;
+import com.jme3.math.Transform;
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.queue.RenderQueue;
+import com.jme3.renderer.queue.RenderQueue.Bucket;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.Node;
+import com.jme3.scene.VertexBuffer.Type;
+import java.nio.Buffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+
+/**
+ *  Merges the impostor quads of a block of forest cells into a single
+ *  mesh so that a distant block of trees is one draw call instead of one
+ *  per tree.  Each cell has a fixed slot in the mesh that is rewritten
+ *  only when the cell's impostor or transform changes.  Empty slots are
+ *  collapsed to zero size.
+ *
+ *  <p>The tree transforms are baked into the vertex positions and sizes.
+ *  The yaw of each tree goes in TexCoord2 so that the batch material
+ *  (MatDefs/ImpostorBatch.j3md) can still pick the atlas cell for the
+ *  tree's own orientation when it billboards the quads.</p>
+ *
+ *  @author    Paul Speed
+ */
+public class ImpostorBatch {
+ 
+    private static final int VERTS_PER_QUAD = 4;
+    private static final int INDEXES_PER_QUAD = 6;
+ 
+    private int capacity;
+    private Mesh mesh;
+    private Geometry geom;
+    private Geometry wireGeom;
+    private FloatBuffer pos;
+    private FloatBuffer sizes;
+    private FloatBuffer texes;
+    private FloatBuffer yaws;
+    private Buffer indexes;
+ 
+    // What each slot currently holds so that unchanged slots
+    // can be skipped
+    private Mesh[] sources;
+    private int[] versions;
+    private Vector3f[] mins;
+    private Vector3f[] maxes;
+    private int count;
+    private boolean dirty;
+    
+    private final Vector3f temp = new Vector3f();
+    
+    public ImpostorBatch( String name, int capacity, Material material ) {
+        this.capacity = capacity;
+        this.sources = new Mesh[capacity];
+        this.versions = new int[capacity];
+        this.mins = new Vector3f[capacity];
+        this.maxes = new Vector3f[capacity];
+ 
+        BufferPool pool = BufferPool.getInstance();
+        pos = pool.acquireFloats(capacity * VERTS_PER_QUAD * 3);
+        sizes = pool.acquireFloats(capacity * VERTS_PER_QUAD);
+        texes = pool.acquireFloats(capacity * VERTS_PER_QUAD * 2);
+        yaws = pool.acquireFloats(capacity * VERTS_PER_QUAD);
+        
+        // Pooled buffers may have old data in them
+        for( int i = 0; i < pos.limit(); i++ ) {
+            pos.put(i, 0);
+        }
+        for( int i = 0; i < sizes.limit(); i++ ) {
+            sizes.put(i, 0);
+        }
+        for( int i = 0; i < texes.limit(); i++ ) {
+            texes.put(i, 0);
+        }
+        for( int i = 0; i < yaws.limit(); i++ ) {
+            yaws.put(i, 0);
+        }
+        
+        // Same winding as the individual impostor quads.  Large batches
+        // have more vertices than short indexes can reach.
+        if( capacity * VERTS_PER_QUAD - 1 > Short.MAX_VALUE ) {
+            IntBuffer ints = pool.acquireInts(capacity * INDEXES_PER_QUAD);
+            for( int i = 0; i < capacity; i++ ) {
+                int base = i * VERTS_PER_QUAD;
+                ints.put(base).put(base + 1).put(base + 3);
+                ints.put(base).put(base + 3).put(base + 2);
+            }
+            ints.flip();
+            indexes = ints;
+        } else {
+            ShortBuffer shorts = pool.acquireShorts(capacity * INDEXES_PER_QUAD);
+            for( int i = 0; i < capacity; i++ ) {
+                int base = i * VERTS_PER_QUAD;
+                shorts.put((short)base).put((short)(base + 1)).put((short)(base + 3));
+                shorts.put((short)base).put((short)(base + 3)).put((short)(base + 2));
+            }
+            shorts.flip();
+            indexes = shorts;
+        }
+        
+        mesh = new Mesh();
+        mesh.setBuffer(Type.Position, 3, pos);
+        mesh.setBuffer(Type.Size, 1, sizes);
+        mesh.setBuffer(Type.TexCoord, 2, texes);
+        mesh.setBuffer(Type.TexCoord2, 1, yaws);
+        if( indexes instanceof IntBuffer ) {
+            mesh.setBuffer(Type.Index, 3, (IntBuffer)indexes);
+        } else {
+            mesh.setBuffer(Type.Index, 3, (ShortBuffer)indexes);
+        }
+        mesh.setBound(new BoundingBox());
+        
+        geom = new Geometry(name, mesh);
+        geom.setMaterial(material);
+        geom.setShadowMode(RenderQueue.ShadowMode.CastAndReceive);
+        geom.setQueueBucket(Bucket.Transparent);
+    }
+    
+    public Geometry getGeometry() {
+        return geom;
+    }
+ 
+    /**
+     *  Adds or removes a wireframe version of the batch that
+     *  uses the specified material.
+     */   
+    public void setWireMaterial( Material material ) {
+        if( material == null ) {
+            if( wireGeom != null ) {
+                wireGeom.removeFromParent();
+                wireGeom = null;
+            }
+            return;
+        }
+        if( wireGeom == null ) {
+            wireGeom = new Geometry(geom.getName() + ":wire", mesh);
+            if( geom.getParent() != null ) {
+                geom.getParent().attachChild(wireGeom);
+            }
+        }
+        wireGeom.setMaterial(material);
+    }
+ 
+    public void attach( Node parent ) {
+        parent.attachChild(geom);
+        if( wireGeom != null ) {
+            parent.attachChild(wireGeom);
+        }
+    }
+    
+    public void detach() {
+        geom.removeFromParent();
+        if( wireGeom != null ) {
+            wireGeom.removeFromParent();
+        }
+    }
+ 
+    /**
+     *  Returns the number of slots that currently hold impostors.
+     */   
+    public int getCount() {
+        return count;
+    }
+ 
+    /**
+     *  Returns true if the specified slot does not already hold the
+     *  specified impostor mesh at the specified transform version.
+     */   
+    public boolean needsUpdate( int slot, Mesh source, int version ) {
+        return sources[slot] != source || versions[slot] != version;
+    }
+ 
+    /**
+     *  Sets the specified slot to the impostor mesh transformed by the
+     *  specified transform.  The transform's yaw is kept per vertex for 
+     *  the shader.  The version is used to detect transform changes, if 
+     *  the source and version are the same as last time then nothing 
+     *  is done.
+     */   
+    public void setSlot( int slot, Mesh source, Transform transform, int version ) {
+        if( !needsUpdate(slot, source, version) ) {
+            return;
+        }
+        if( sources[slot] == null ) {
+            count++;
+        }
+        sources[slot] = source;
+        versions[slot] = version;
+        dirty = true;
+        
+        FloatBuffer srcPos = (FloatBuffer)source.getBuffer(Type.Position).getData();
+        FloatBuffer srcSizes = (FloatBuffer)source.getBuffer(Type.Size).getData();
+        FloatBuffer srcTexes = (FloatBuffer)source.getBuffer(Type.TexCoord).getData();
+        
+        float scale = transform.getScale().x;
+        
+        // The direction the tree's z axis faces after rotation, flattened,
+        // gives the yaw in the same sense as the atlas angles
+        transform.getRotation().mult(Vector3f.UNIT_Z, temp);
+        float yaw = FastMath.atan2(temp.x, temp.z);
+        
+        Vector3f min = mins[slot];
+        Vector3f max = maxes[slot];
+        if( min == null ) {
+            min = mins[slot] = new Vector3f();
+            max = maxes[slot] = new Vector3f();
+        }
+        min.set(Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY); 
+        max.set(Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY);
+        
+        int base = slot * VERTS_PER_QUAD;
+        for( int v = 0; v < VERTS_PER_QUAD; v++ ) {
+            temp.set(srcPos.get(v * 3), srcPos.get(v * 3 + 1), srcPos.get(v * 3 + 2));
+            transform.transformVector(temp, temp);
+            pos.put((base + v) * 3, temp.x);
+            pos.put((base + v) * 3 + 1, temp.y);
+            pos.put((base + v) * 3 + 2, temp.z);
+            
+            float size = srcSizes.get(v) * scale;
+            sizes.put(base + v, size);
+            
+            texes.put((base + v) * 2, srcTexes.get(v * 2));
+            texes.put((base + v) * 2 + 1, srcTexes.get(v * 2 + 1));
+            yaws.put(base + v, yaw);
+            
+            // The quad can face any direction so the bounds need
+            // to account for the full width in x and z.
+            float radius = Math.abs(size);
+            min.x = Math.min(min.x, temp.x - radius);
+            min.y = Math.min(min.y, temp.y);
+            min.z = Math.min(min.z, temp.z - radius);
+            max.x = Math.max(max.x, temp.x + radius);
+            max.y = Math.max(max.y, temp.y);
+            max.z = Math.max(max.z, temp.z + radius);
+        }
+    }
+ 
+    /**
+     *  Collapses the specified slot if it currently holds an impostor.
+     */   
+    public void clearSlot( int slot ) {
+        if( sources[slot] == null ) {
+            return;
+        }
+        sources[slot] = null;
+        count--;
+        dirty = true;
+        
+        int base = slot * VERTS_PER_QUAD;
+        for( int v = 0; v < VERTS_PER_QUAD; v++ ) {
+            pos.put((base + v) * 3, 0);
+            pos.put((base + v) * 3 + 1, 0);
+            pos.put((base + v) * 3 + 2, 0);
+            sizes.put(base + v, 0);
+        }
+    }
+ 
+    /**
+     *  Pushes any slot changes to the mesh.  Must be called on the
+     *  render thread.
+     */   
+    public void commit() {
+        if( !dirty ) {
+            return;
+        }
+        dirty = false;
+        
+        mesh.getBuffer(Type.Position).setUpdateNeeded();
+        mesh.getBuffer(Type.Size).setUpdateNeeded();
+        mesh.getBuffer(Type.TexCoord).setUpdateNeeded();
+        mesh.getBuffer(Type.TexCoord2).setUpdateNeeded();
+ 
+        Vector3f min = new Vector3f(Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY);
+        Vector3f max = new Vector3f(Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY);
+        for( int i = 0; i < capacity; i++ ) {
+            if( sources[i] == null ) {
+                continue;
+            }
+            min.minLocal(mins[i]);
+            max.maxLocal(maxes[i]);
+        }
+        BoundingBox bound = (BoundingBox)mesh.getBound();
+        if( count == 0 ) {
+            bound.setCenter(Vector3f.ZERO);
+            bound.setXExtent(0);
+            bound.setYExtent(0);
+            bound.setZExtent(0);
+        } else {
+            bound.setMinMax(min, max);
+        }
+        geom.updateModelBound();
+        if( wireGeom != null ) {
+            wireGeom.updateModelBound();
+        }
+    }
+ 
+    /**
+     *  Detaches the batch and returns its buffers to the pool.
+     */   
+    public void release() {
+        detach();
+        TreeMeshes.releaseMesh(mesh);
+    }
+}
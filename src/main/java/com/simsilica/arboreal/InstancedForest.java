@@ -0,0 +1,242 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal;
+
+import com.jme3.material.Material;
+import com.jme3.math.Transform;
+import com.jme3.renderer.queue.RenderQueue.Bucket;
+import com.jme3.renderer.queue.RenderQueue.ShadowMode;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Node;
+import com.jme3.scene.Spatial;
+import com.jme3.scene.instancing.InstancedNode;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ *  Renders the trees of a forest grid through hardware instancing.
+ *  Each frame, a proxy geometry is kept for each of the geometries in 
+ *  every tree's active level of detail.  Since trees with the same seed share the same
+ *  meshes, the InstancedNode ends up drawing all of the trees that share
+ *  a seed and level of detail with one instanced geometry per material.
+ *
+ *  <p>Geometries whose materials do not support instancing are still
+ *  rendered through regular (non-instanced) proxies.</p>
+ *
+ *  @author    Paul Speed
+ */
+public class InstancedForest {
+
+    private TreeMaterials materials;
+    
+    private Node root;
+    private InstancedNode opaque;
+    private InstancedNode transparent;
+    private Node fallback;
+    
+    private final Map<TreeBuilderReference, Cell> cells = new IdentityHashMap<TreeBuilderReference, Cell>();
+    private boolean dirty;
+    private int transformVersion;
+    
+    public InstancedForest( TreeMaterials materials ) {
+        this.materials = materials;
+        this.root = new Node("InstancedForest");
+        
+        // Instanced geometries take their bucket from the node that
+        // they are attached to so transparent geometry needs its own
+        this.opaque = new InstancedNode("InstancedOpaque");
+        this.opaque.setShadowMode(ShadowMode.CastAndReceive);        
+        this.transparent = new InstancedNode("InstancedTransparent");
+        this.transparent.setShadowMode(ShadowMode.CastAndReceive);
+        this.transparent.setQueueBucket(Bucket.Transparent);        
+        this.fallback = new Node("NonInstanced");
+        
+        root.attachChild(opaque);
+        root.attachChild(transparent);
+        root.attachChild(fallback);
+    }
+    
+    public Node getRootNode() {
+        return root;
+    }
+ 
+    /**
+     *  Called when the tree transforms have changed so that the 
+     *  instance transforms will be refreshed on the next update.
+     */   
+    public void invalidateTransforms() {
+        transformVersion++;
+    }
+ 
+    /**
+     *  Makes sure the specified tree's instances match its currently
+     *  active level of detail.  Must be called on the render thread 
+     *  followed by commit() once all of the trees have been updated.
+     */
+    public void updateTree( TreeBuilderReference tree ) {
+        Cell cell = cells.get(tree);
+        if( cell == null ) {
+            cell = new Cell(tree);
+            cells.put(tree, cell);
+        }
+        
+        Node level = tree.getActiveLevelNode();
+        if( level != cell.level || (level != null && level.getQuantity() != cell.childCount) ) {
+            cell.setLevel(level);
+        } else if( cell.transformVersion != transformVersion ) {
+            cell.updateTransforms();
+        }
+    }
+ 
+    /**
+     *  Removes the specified tree's proxies.
+     */   
+    public void removeTree( TreeBuilderReference tree ) {
+        Cell cell = cells.remove(tree);
+        if( cell != null ) {
+            cell.setLevel(null);
+        }
+    }
+ 
+    /**
+     *  Removes all of the trees.
+     */   
+    public void clear() {
+        for( Iterator<Cell> it = cells.values().iterator(); it.hasNext(); ) {
+            it.next().setLevel(null);
+            it.remove();
+        }
+        commit();
+    }
+ 
+    /**
+     *  Updates the instanced geometry for any proxies that were
+     *  added or removed since the last commit.
+     */   
+    public void commit() {
+        materials.refreshInstancedMaterials();
+        if( !dirty ) {
+            return;
+        }
+        dirty = false;
+        opaque.instance();
+        transparent.instance();
+    }
+    
+    public int getTreeCount() {
+        return cells.size();
+    }
+    
+    private class Cell {
+        TreeBuilderReference tree;
+        Node level;
+        int childCount;
+        int transformVersion;
+        List<Geometry> proxies = new ArrayList<Geometry>();
+        
+        public Cell( TreeBuilderReference tree ) {
+            this.tree = tree;
+        }
+        
+        public void setLevel( Node level ) {
+            for( Geometry proxy : proxies ) {
+                proxy.removeFromParent();
+            }
+            proxies.clear();
+            dirty = true;
+ 
+            this.level = level;
+            this.childCount = level == null ? 0 : level.getQuantity();
+            this.transformVersion = InstancedForest.this.transformVersion;
+            if( level == null ) {
+                return;
+            }
+            
+            for( Spatial child : level.getChildren() ) {
+                if( !(child instanceof Geometry) ) {
+                    continue;
+                }
+                Geometry source = (Geometry)child;
+                Geometry proxy = new Geometry(source.getName(), source.getMesh());
+                proxy.setLocalTransform(getTransform(source));
+                
+                Material material = materials.getInstancedMaterial(source.getMaterial());
+                if( material != null ) {
+                    proxy.setMaterial(material);
+                    if( source.getQueueBucket() == Bucket.Transparent ) {
+                        transparent.attachChild(proxy);
+                    } else {
+                        opaque.attachChild(proxy);
+                    }
+                } else {
+                    proxy.setMaterial(source.getMaterial());
+                    proxy.setQueueBucket(source.getQueueBucket());
+                    proxy.setShadowMode(source.getShadowMode());
+                    fallback.attachChild(proxy);
+                }
+                proxies.add(proxy);
+            }
+        }
+        
+        public void updateTransforms() {
+            this.transformVersion = InstancedForest.this.transformVersion;
+            int i = 0;
+            for( Spatial child : level.getChildren() ) {
+                if( !(child instanceof Geometry) ) {
+                    continue;
+                }
+                proxies.get(i++).setLocalTransform(getTransform(child));
+            }
+        }
+ 
+        /**
+         *  Returns the transform of the source geometry combined with the
+         *  tree's transform, ie: where it would be relative to the forest
+         *  root.
+         */       
+        protected Transform getTransform( Spatial source ) {
+            Transform result = source.getLocalTransform().clone();
+            result.combineWithParent(level.getLocalTransform());
+            result.combineWithParent(tree.getTreeNode().getLocalTransform());
+            return result;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+ 
+package com.simsilica.arboreal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ *  Maps the fields of TreeParameters, BranchParameters, and
+ *  LevelOfDetailParameters to the pipeline stages that depend on
+ *  them.  A change to a field only needs to re-run the stages that
+ *  are returned for it.  The sets include everything downstream, so
+ *  a skeleton field also reports the mesh, leaf, and impostor stages.
+ *
+ *  @author    Paul Speed
+ */
+public class ParameterDependencies {
+
+    static Logger log = LoggerFactory.getLogger(ParameterDependencies.class);
+
+    private static final EnumSet<TreeStage> SKELETON 
+            = EnumSet.of(TreeStage.Skeleton, TreeStage.TrunkMesh, TreeStage.Leaves, TreeStage.Impostor);
+    private static final EnumSet<TreeStage> TRUNK_MESH 
+            = EnumSet.of(TreeStage.TrunkMesh, TreeStage.Impostor);
+    private static final EnumSet<TreeStage> MESHES 
+            = EnumSet.of(TreeStage.TrunkMesh, TreeStage.Leaves, TreeStage.Impostor);
+    private static final EnumSet<TreeStage> LEAVES 
+            = EnumSet.of(TreeStage.Leaves, TreeStage.Impostor);
+    private static final EnumSet<TreeStage> UNIFORMS 
+            = EnumSet.of(TreeStage.MaterialUniforms);
+    
+    private static final Map<String, EnumSet<TreeStage>> treeFields 
+            = new HashMap<String, EnumSet<TreeStage>>();
+    private static final Map<String, EnumSet<TreeStage>> branchFields 
+            = new HashMap<String, EnumSet<TreeStage>>();
+    private static final Map<String, EnumSet<TreeStage>> lodFields 
+            = new HashMap<String, EnumSet<TreeStage>>();
+    
+    static {
+        treeFields.put("seed", SKELETON);
+        treeFields.put("trunkRadius", SKELETON);
+        treeFields.put("trunkHeight", SKELETON);
+        treeFields.put("rootHeight", SKELETON);
+        treeFields.put("YOffset", MESHES);
+        treeFields.put("textureURepeat", TRUNK_MESH);
+        treeFields.put("textureVScale", TRUNK_MESH);
+        treeFields.put("flexHeight", UNIFORMS);
+        treeFields.put("trunkFlexibility", UNIFORMS);
+        treeFields.put("branchFlexibility", UNIFORMS);
+        treeFields.put("generateLeaves", LEAVES);
+        treeFields.put("leafScale", LEAVES);
+ 
+        // Branches and roots share the same fields        
+        branchFields.put("enabled", SKELETON);
+        branchFields.put("inherit", SKELETON);
+        branchFields.put("radialSegments", TRUNK_MESH);
+        branchFields.put("lengthSegments", SKELETON);
+        branchFields.put("segmentVariation", SKELETON);
+        branchFields.put("taper", SKELETON);
+        branchFields.put("twist", SKELETON);
+        branchFields.put("gravity", SKELETON);
+        branchFields.put("sideJointCount", SKELETON);
+        branchFields.put("sideJointStartAngle", SKELETON);
+        branchFields.put("inclination", SKELETON);
+        branchFields.put("radiusScale", SKELETON);
+        branchFields.put("lengthScale", SKELETON);
+        branchFields.put("hasEndJoint", SKELETON);
+        branchFields.put("tipRotation", SKELETON);
+ 
+        // The impostor atlas is rendered with the first level's mesh
+        // settings.  See getLodStages(int, String...) for those.
+        lodFields.put("distance", EnumSet.of(TreeStage.LodSwitch));
+        lodFields.put("branchDepth", EnumSet.of(TreeStage.TrunkMesh, TreeStage.Leaves));
+        lodFields.put("rootDepth", EnumSet.of(TreeStage.TrunkMesh));
+        lodFields.put("maxRadialSegments", EnumSet.of(TreeStage.TrunkMesh));
+        lodFields.put("reduction", EnumSet.of(TreeStage.TrunkMesh, TreeStage.Leaves, TreeStage.LodSwitch));
+    }
+ 
+    /**
+     *  Returns the stages affected by changes to any of the specified
+     *  TreeParameters properties.
+     */
+    public static EnumSet<TreeStage> getTreeStages( String... properties ) {
+        return getStages(treeFields, "TreeParameters", properties);
+    }
+    
+    /**
+     *  Returns the stages affected by changes to any of the specified
+     *  BranchParameters fields.  This applies to roots as well as branches.
+     */
+    public static EnumSet<TreeStage> getBranchStages( String... fields ) {
+        return getStages(branchFields, "BranchParameters", fields);
+    }
+ 
+    /**
+     *  Returns the stages affected by changes to any of the specified
+     *  LevelOfDetailParameters fields.
+     */
+    public static EnumSet<TreeStage> getLodStages( String... fields ) {
+        return getStages(lodFields, "LevelOfDetailParameters", fields);
+    }
+ 
+    /**
+     *  Returns the stages affected by changes to any of the specified
+     *  fields of a particular level of detail.  The atlas trunk is 
+     *  generated with the first level's parameters so anything that 
+     *  changes that level's meshes also affects the impostors.
+     */
+    public static EnumSet<TreeStage> getLodStages( int lod, String... fields ) {
+        EnumSet<TreeStage> result = getLodStages(fields);
+        if( lod == 0 && result.contains(TreeStage.TrunkMesh) ) {
+            result.add(TreeStage.Impostor);
+        }
+        return result;
+    }
+    
+    /**
+     *  Returns the names of the TreeParameters properties that affect
+     *  the specified stage.
+     */
+    public static List<String> getTreeFields( TreeStage stage ) {
+        return getFields(treeFields, stage);
+    }
+ 
+    /**
+     *  Returns the names of the BranchParameters fields that affect
+     *  the specified stage.
+     */
+    public static List<String> getBranchFields( TreeStage stage ) {
+        return getFields(branchFields, stage);
+    }
+ 
+    private static List<String> getFields( Map<String, EnumSet<TreeStage>> map, TreeStage stage ) {
+        List<String> result = new ArrayList<String>();
+        for( Map.Entry<String, EnumSet<TreeStage>> e : map.entrySet() ) {
+            if( e.getValue().contains(stage) ) {
+                result.add(e.getKey());
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+    
+    private static EnumSet<TreeStage> getStages( Map<String, EnumSet<TreeStage>> map, 
+                                                 String type, String... names ) {
+        EnumSet<TreeStage> result = EnumSet.noneOf(TreeStage.class);
+        for( String name : names ) {
+            EnumSet<TreeStage> stages = map.get(name);
+            if( stages == null ) {
+                // Better to do too much work than to miss a change
+                log.warn("No dependencies defined for " + type + "." + name + ", assuming all stages.");
+                return EnumSet.allOf(TreeStage.class);
+            }
+            result.addAll(stages);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal;
+
+import com.jme3.scene.Mesh;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ *  A reference counted wrapper around a Mesh that is used by
+ *  more than one level or tree.  The mesh buffers are destroyed
+ *  when the last reference is released.  A new SharedMesh starts
+ *  with one reference that belongs to its creator.
+ *
+ *  @author    Paul Speed
+ */
+public class SharedMesh {
+
+    private final Mesh mesh;
+    private final AtomicInteger refCount = new AtomicInteger(1);
+    
+    public SharedMesh( Mesh mesh ) {
+        this.mesh = mesh;
+    }
+    
+    public Mesh getMesh() {
+        return mesh;
+    }
+    
+    public SharedMesh acquire() {
+        if( refCount.getAndIncrement() <= 0 ) {
+            throw new IllegalStateException("Mesh has already been released:" + mesh);
+        }
+        return this;
+    }
+    
+    public void release() {
+        int count = refCount.decrementAndGet();
+        if( count == 0 ) {
+            TreeMeshes.releaseMesh(mesh);
+        } else if( count < 0 ) {
+            throw new IllegalStateException("Mesh released too many times:" + mesh);
+        }
+    }
+    
+    public int getRefCount() {
+        return refCount.get();
+    }
+    
+    @Override
+    public String toString() {
+        return "SharedMesh[" + mesh + ", refs=" + refCount.get() + "]";
+    }
+}
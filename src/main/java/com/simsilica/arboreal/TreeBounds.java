@@ -0,0 +1,134 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal;
+
+import com.jme3.bounding.BoundingBox;
+import com.jme3.math.Vector3f;
+
+
+/**
+ *  The bounds of a tree and of its branch tips calculated by walking
+ *  the tree's skeleton instead of generating a mesh.  Each segment
+ *  contributes its start and end points expanded by its radius at
+ *  that end.  The impostor quads and the atlas cameras are both sized
+ *  from these so that they agree no matter which levels of detail
+ *  happen to have been generated.
+ *
+ *  @author    Paul Speed
+ */
+public class TreeBounds {
+ 
+    private final BoundingBox trunkBounds;
+    private final BoundingBox tipBounds;
+    
+    protected TreeBounds( BoundingBox trunkBounds, BoundingBox tipBounds ) {
+        this.trunkBounds = trunkBounds;
+        this.tipBounds = tipBounds;
+    }
+ 
+    /**
+     *  Walks the trunk and root segments of the specified tree to find
+     *  the bounds that its meshes would have when generated with the
+     *  specified y offset.
+     */   
+    public static TreeBounds calculate( Tree tree, float yOffset ) {
+        Vector3f origin = new Vector3f(0, yOffset, 0);
+        Extents trunk = new Extents();
+        Extents tips = new Extents();
+        walk(tree.getTrunk(), origin, trunk, tips);
+        
+        // The roots are part of the trunk mesh but never have leaves
+        walk(tree.getRoot(), origin, trunk, null);
+        return new TreeBounds(trunk.toBounds(), tips.toBounds());
+    }
+ 
+    private static void walk( Segment seg, Vector3f start, Extents bounds, Extents tips ) {
+        if( seg == null ) {
+            return;
+        }
+        Vector3f end = seg.dir.mult(seg.length).addLocal(start);
+        bounds.add(start, seg.startRadius);
+        bounds.add(end, seg.endRadius);
+        if( seg.children == null || seg.children.isEmpty() ) {
+            if( tips != null ) {
+                tips.add(end, 0);
+            }
+            return;
+        }
+        for( Segment child : seg.children ) {
+            walk(child, end, bounds, tips);
+        }
+    }
+ 
+    /**
+     *  Returns the bounds of all of the trunk, branch, and root segments
+     *  including their radii.
+     */   
+    public BoundingBox getTrunkBounds() {
+        return trunkBounds;
+    }
+ 
+    /**
+     *  Returns the bounds of the branch tips where leaves are placed or
+     *  null if there are no tips.  Billboarded leaves are expanded in the 
+     *  shader so this is also the bounds of the leaf mesh.
+     */   
+    public BoundingBox getTipBounds() {
+        return tipBounds;
+    }
+ 
+    @Override
+    public String toString() {
+        return "TreeBounds[trunk=" + trunkBounds + ", tips=" + tipBounds + "]";
+    }
+    
+    private static class Extents {
+        private final Vector3f min = new Vector3f(Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY);
+        private final Vector3f max = new Vector3f(Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY);
+        private boolean empty = true;
+        
+        public void add( Vector3f p, float radius ) {
+            min.minLocal(new Vector3f(p.x - radius, p.y - radius, p.z - radius));
+            max.maxLocal(new Vector3f(p.x + radius, p.y + radius, p.z + radius));
+            empty = false;
+        }
+        
+        public BoundingBox toBounds() {
+            return empty ? null : new BoundingBox(min, max);
+        }
+    }
+}
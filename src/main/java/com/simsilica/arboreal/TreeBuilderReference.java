@@ -37,29 +37,19 @@
 package com.simsilica.arboreal;
 
 
-import com.jme3.bounding.BoundingBox;
-import com.jme3.material.Material;
-import com.jme3.math.ColorRGBA;
-import com.jme3.math.Vector3f;
 import com.jme3.renderer.queue.RenderQueue;
 import com.jme3.renderer.queue.RenderQueue.Bucket;
 import com.jme3.scene.Geometry;
 import com.jme3.scene.Mesh;
 import com.jme3.scene.Node;
 import com.jme3.scene.Spatial.CullHint;
-import com.jme3.scene.VertexBuffer;
-import com.jme3.scene.VertexBuffer.Type;
-import com.jme3.util.BufferUtils;
-import com.simsilica.arboreal.mesh.BillboardedLeavesMeshGenerator;
-import com.simsilica.arboreal.mesh.FlatPolyTreeMeshGenerator;
+import com.simsilica.arboreal.LevelOfDetailParameters.ReductionType;
+import com.simsilica.arboreal.TreeMeshes.LevelMeshes;
 import com.simsilica.arboreal.mesh.LodSwitchControl;
-import com.simsilica.arboreal.mesh.SkinnedTreeMeshGenerator;
-import com.simsilica.arboreal.mesh.Vertex;
 import com.simsilica.builder.Builder;
 import com.simsilica.builder.BuilderReference;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -71,66 +61,85 @@ import org.slf4j.LoggerFactory;
 public class TreeBuilderReference implements BuilderReference
 {
     static Logger log = LoggerFactory.getLogger(TreeBuilderReference.class);
+
+    /**
+     *  The user data key that holds each level node's switch distance.
+     */
+    public static final String SWITCH_DISTANCE = "lodSwitchDistance";
     
-    private int priority;
- 
-    private int seed;   
-    private Material treeMaterial;
-    private Material wireMaterial;
-    private Material leafMaterial;
-    private Material flatMaterial;
-    private Material flatWireMaterial;
-    private Material impostorMaterial;
-    private Material impostorWireMaterial;
+    // The priority that the next build request will be queued with
+    private volatile int priority;
+    
+    // The request last queued with the builder.  Each request keeps the
+    // priority it was queued with.
+    private BuildRequest request;
+    private boolean released;
+ 
+    // Set on the render thread but read during build()
+    private volatile int seed;   
+    private TreeMaterials materials;
     private TreeParameters treeParameters;
+    private TreeMeshCache meshCache;
     
     private Node treeNode;
  
     private LevelGeometry[] lods;
-    private volatile LevelGeometry[] newLods;
+    private TreeMeshes[] lodMeshes;
+    
+    // The tree that was built but whose levels have not been
+    // scheduled yet.
+    private final AtomicReference<TreeMeshes> newMeshes = new AtomicReference<TreeMeshes>();
+    
+    // The tree whose levels are currently being built
+    private TreeMeshes pendingMeshes;
+    private int pendingLevels;
+    private int pendingStamp;
+    
+    // The generation whose levels have all been applied
+    private int appliedGeneration = 0;
      
     private boolean showWire;
+    private volatile boolean preview;
+    private boolean impostorOnly;
+    private boolean impostorsBatched;
+    private int activeLod;
+    private LevelGeometry activeLevel;
+    private LevelListener levelListener;
     
-    private AtomicInteger needsUpdate = new AtomicInteger(1);
+    // Incremented every time the tree is marked as changed.  Builds
+    // are stamped with the generation they started with so that stale
+    // builds can be abandoned early.
+    private final AtomicInteger generation = new AtomicInteger(1);
     
-    // For debugging    
-    private volatile boolean check = false;
- 
-    public TreeBuilderReference( TreeParameters treeParameters, 
-                                 Material treeMaterial, 
-                                 Material wireMaterial,
-                                 Material leafMaterial,
-                                 Material flatMaterial,
-                                 Material impostorMaterial ) {
-        this.treeParameters = treeParameters;
-        this.treeMaterial = treeMaterial;
-        this.wireMaterial = wireMaterial;
-        this.leafMaterial = leafMaterial;
-        this.flatMaterial = flatMaterial;
-        this.impostorMaterial = impostorMaterial;
+    // The newest generation that a build has claimed.  Build requests can
+    // run concurrently so only one of them gets to build each generation.
+    private final AtomicInteger builtGeneration = new AtomicInteger(0);
+ 
+    public TreeBuilderReference( TreeMeshCache meshCache, TreeMaterials materials ) {
+        this.meshCache = meshCache;
+        this.treeParameters = meshCache.getTreeParameters();
+        this.materials = materials;
  
         lods = new LevelGeometry[treeParameters.getLodCount()];       
+        lodMeshes = new TreeMeshes[lods.length];
         treeNode = new Node("Tree");
-        treeNode.addControl(new LodSwitchControl());
-        
-        // We'll derive the flat wire material from the flat material
-        flatWireMaterial = flatMaterial.clone();
-        flatWireMaterial.clearParam("DiffuseMap");
-        flatWireMaterial.setColor("Diffuse", ColorRGBA.Yellow.mult(10));
-        flatWireMaterial.setColor("Ambient", ColorRGBA.Yellow.mult(10));
-        flatWireMaterial.getAdditionalRenderState().setWireframe(true);
         
-        impostorWireMaterial = impostorMaterial.clone();
-        impostorWireMaterial.clearParam("DiffuseMap");
-        impostorWireMaterial.setColor("Diffuse", ColorRGBA.Yellow.mult(10));
-        impostorWireMaterial.setColor("Ambient", ColorRGBA.Yellow.mult(10));
-        impostorWireMaterial.getAdditionalRenderState().setWireframe(true);
+        // The switch control is kept up to date so that exported trees
+        // can switch levels on their own but in the editor the levels are
+        // switched for the whole forest at once by the ForestLodManager.
+        LodSwitchControl lodControl = new LodSwitchControl();
+        lodControl.setEnabled(false);
+        treeNode.addControl(lodControl);
     }        
  
     public void setSeed( int seed ) {
         this.seed = seed;
     }  
  
+    public int getSeed() {
+        return seed;
+    }
+ 
     public void setWireFrame( boolean b ) {
         if( showWire == b ) {
             return;
@@ -140,22 +149,163 @@ public class TreeBuilderReference implements BuilderReference
             if( level == null ) {
                 continue;
             }
-            if( showWire ) {
-                level.wireGeom.setCullHint(CullHint.Inherit);
-            } else {
-                level.wireGeom.setCullHint(CullHint.Always);
-            }
+            level.setShowWire(showWire);
         }
     }    
     
+    /**
+     *  When true, the next builds will only generate a single cheap
+     *  level of detail that is displayed at all distances.  This is
+     *  used to give fast feedback while parameters are being edited.
+     */
+    public void setPreview( boolean preview ) {
+        this.preview = preview;
+    }
+ 
+    /**
+     *  When true, only the impostor levels of detail are applied and
+     *  any other levels are cleared.  This is used for trees that are
+     *  far enough away that they would never be displayed as anything
+     *  else.  Takes effect on the next build.
+     */   
+    public void setImpostorOnly( boolean impostorOnly ) {
+        this.impostorOnly = impostorOnly;
+    }
+    
+    public boolean isImpostorOnly() {
+        return impostorOnly;
+    }
+    
+    public boolean isPreview() {
+        return preview;
+    }
+    
+    /**
+     *  Marks the tree as needing to be rebuilt and cancels any
+     *  build that is already in progress.  Must be called on the 
+     *  render thread.
+     */
     public void markChanged() {
-        needsUpdate.incrementAndGet();
+        generation.incrementAndGet();
+        
+        // Let go of anything still being built.  If no other tree 
+        // is waiting for the same meshes then their generation will
+        // be abandoned at the next check.
+        meshCache.release(newMeshes.getAndSet(null));
+        meshCache.release(pendingMeshes);
+        pendingMeshes = null;
+    }
+ 
+    protected boolean isStale( int stamp ) {
+        return generation.get() != stamp;
     }
  
     public Node getTreeNode() {
         return treeNode;
     }
  
+    /**
+     *  Sets the level of detail that this tree should display, usually
+     *  as decided by the ForestLodManager.  If that level hasn't been 
+     *  built yet then the nearest built level is shown instead.  Must 
+     *  be called on the render thread.
+     */
+    public void setActiveLod( int lod ) {
+        if( this.activeLod == lod ) {
+            return;
+        }
+        this.activeLod = lod;
+        refreshActiveLevel();
+    }
+    
+    public int getActiveLod() {
+        return activeLod;
+    }
+ 
+    /**
+     *  Returns the level node currently being displayed or null if
+     *  no levels have been built yet.
+     */
+    public Node getActiveLevelNode() {
+        return activeLevel == null ? null : activeLevel.levelNode;
+    }
+ 
+    /**
+     *  Returns the meshes of the level currently being displayed or
+     *  null if no levels have been built yet.
+     */
+    public LevelMeshes getActiveLevelMeshes() {
+        return activeLevel == null ? null : activeLevel.meshes;
+    }
+ 
+    /**
+     *  Shows the level that best matches the active level of detail
+     *  and culls all of the others.  The other levels stay attached so
+     *  that the tree node always holds the whole chain, ie: for export.
+     *  Levels that are missing are covered by the next built level just 
+     *  like the switch distances used for the LodSwitchControl.
+     */
+    protected void refreshActiveLevel() {
+        LevelGeometry best = null;
+        for( int i = 0; i < lods.length; i++ ) {
+            if( lods[i] == null ) {
+                continue;
+            }
+            best = lods[i];
+            if( i >= activeLod ) {
+                break;
+            }
+        }
+        setActiveLevel(best);
+        for( LevelGeometry level : lods ) {
+            if( level != null ) {
+                level.refreshCullHint();
+            }
+        }
+    }
+ 
+    private void setActiveLevel( LevelGeometry level ) {
+        if( activeLevel == level ) {
+            return;
+        }
+        activeLevel = level;
+        if( levelListener != null ) {
+            levelListener.activeLevelChanged(this);
+        }
+    }
+ 
+    /**
+     *  Sets the listener that is notified on the render thread 
+     *  whenever the displayed level changes.
+     */   
+    public void setLevelListener( LevelListener levelListener ) {
+        this.levelListener = levelListener;
+    }
+    
+    public LevelListener getLevelListener() {
+        return levelListener;
+    }
+ 
+    /**
+     *  When true, the impostor levels of this tree are not rendered
+     *  because they are being drawn as part of an ImpostorBatch instead.
+     */
+    public void setImpostorsBatched( boolean b ) {
+        if( this.impostorsBatched == b ) {
+            return;
+        }
+        this.impostorsBatched = b;
+        for( LevelGeometry level : lods ) {
+            if( level != null ) {
+                level.refreshCullHint();
+            }
+        }
+    }
+    
+    public boolean isImpostorsBatched() {
+        return impostorsBatched;
+    }
+ 
     public int getVertexCount( int lod ) {
         LevelGeometry level = lods[lod];
         if( level == null ) {
@@ -200,311 +350,445 @@ public class TreeBuilderReference implements BuilderReference
         return getTriangleCount(0);
     }
     
+    /**
+     *  Sets the build priority of this tree and its levels.  Lower
+     *  values are built first.  Builds that are already queued keep
+     *  the priority they were queued with until a new request is
+     *  submitted.
+     */
+    public void setPriority( int priority ) {
+        this.priority = priority;
+    }
+ 
     @Override
     public int getPriority() {
         return priority;
     }
+ 
+    /**
+     *  Returns the priority of the last queued build request.
+     */
+    public int getQueuedPriority() {
+        return request == null ? priority : request.priority;
+    }
+ 
+    /**
+     *  Returns a new reference for the builder that builds this tree
+     *  at its current priority.  An earlier request that hasn't started 
+     *  building yet will skip its build.  The builder never sees a queued
+     *  priority change, so re-prioritizing a tree means submitting a new 
+     *  request.  Must be called on the render thread.
+     */
+    public BuilderReference newBuildRequest() {
+        cancelBuild();
+        request = new BuildRequest(priority);
+        return request;
+    }
+ 
+    /**
+     *  Cancels the last build request if it hasn't started building yet.
+     *  Must be called on the render thread.
+     */
+    public void cancelBuild() {
+        if( request != null ) {
+            request.cancelled = true;
+        }
+    }
+ 
+    /**
+     *  Returns true if the tree has been changed since its levels were
+     *  last completely applied.  Must be called on the render thread.
+     */   
+    public boolean isBuilding() {
+        return appliedGeneration != generation.get();
+    }
     
     @Override
     public void build() {
-        if( needsUpdate.get() == 0 ) {
-            return;
+        int stamp = generation.get();
+        while( true ) {
+            int built = builtGeneration.get();
+            if( built >= stamp ) {
+                // Already built or being built by another request
+                return;
+            }
+            if( builtGeneration.compareAndSet(built, stamp) ) {
+                break;
+            }
         }
-        needsUpdate.set(0);
  
-        check = true;
-        try {
-            log.trace("******* rebuilding tree ********");        
-            regenerateTree();
-            log.trace("******* tree built ********" );
-        } finally {
-            check = false; 
-        }        
+        log.trace("******* rebuilding tree ********");        
+        regenerateTree(stamp);
+        log.trace("******* tree built ********" );
     }
     
     @Override
     public void apply( Builder builder ) {
-        if( newLods == null ) {
-            // Nothing was built
+        TreeMeshes built = newMeshes.getAndSet(null);
+        if( built == null ) {
+            // Nothing was built or it was cancelled
             return;
         }
- 
-        if( check ) {
-            log.error( "Ships have passed in the night 1." );
+        if( released ) {
+            // A request was still building when we were released
+            meshCache.release(built);
+            return;
         }
-               
-        log.trace("******* applying tree ********" );
  
-        LodSwitchControl lodControl = treeNode.getControl(LodSwitchControl.class);
-        lodControl.clearLevels();
-                
-        // Release the old ones if we had them.
-        for( LevelGeometry g : lods ) {
-            if( g != null ) {
-                g.release();
-            }
-        }        
+        log.trace("******* scheduling tree levels ********" );
  
-        // Add in the new ones
-        for( int i = 0; i < lods.length; i++ ) {
-            lods[i] = newLods[i];
-            lods[i].attach(lodControl);
-            if( !showWire && lods[i] != null && lods[i].wireGeom != null ) {
-                lods[i].wireGeom.setCullHint(CullHint.Always);
-            }
+        if( pendingMeshes != null ) {
+            // Any levels still building for the older tree will
+            // be ignored when they apply.
+            meshCache.release(pendingMeshes);
         }
-        newLods = null;
+        pendingMeshes = built;
+        pendingLevels = 0;
  
-        log.trace("******* tree applied ********" );        
-        if( check ) {
-            log.error( "Ships have passed in the night 2." );
-        }       
+        // Each level gets built as its own task so that the cheaper
+        // levels don't have to wait for the expensive ones.
+        boolean cleared = false;
+        int stamp = generation.get();
+        pendingStamp = stamp;
+        for( int i = 0; i < built.getLevelCount(); i++ ) {
+            if( impostorOnly && !built.isPreview() 
+                && built.getReduction(i) != ReductionType.Impostor ) {
+                cleared |= clearLevel(i);
+                continue;
+            }
+            pendingLevels++;
+            builder.build(new LevelBuilderReference(built, i, stamp));
+        }
+        if( cleared ) {
+            refreshLevels();
+        }
+        if( pendingLevels == 0 ) {
+            meshCache.release(pendingMeshes);
+            pendingMeshes = null;
+            appliedGeneration = pendingStamp;
+        }
     }
     
     @Override
     public void release( Builder builder ) {
-        for( LevelGeometry g : lods ) {
-            if( g != null ) {
-                g.release();
-            }
-        }        
+        released = true;
+        cancelBuild();
+        clearLevels();
+        
+        // And anything that was built but never applied
+        meshCache.release(pendingMeshes);
+        pendingMeshes = null;
+        meshCache.release(newMeshes.getAndSet(null));
     }
  
-    protected void releaseGeometry( Geometry geom ) {
-        if( geom == null ) {
+    protected void regenerateTree( int stamp ) {
+ 
+        // Grab the shared meshes for our seed.  If another tree
+        // with the same seed has already generated them then this
+        // is essentially free.
+        TreeMeshes treeMeshes = meshCache.acquire(seed, preview);
+        
+        // Make sure the skeleton exists before the levels are
+        // scheduled so that they can share it.  Generating it can take
+        // a while so staleness is checked afterwards.
+        if( treeMeshes.getTree() == null || isStale(stamp) ) {
+            log.trace("******* abandoning stale build ********");
+            meshCache.release(treeMeshes);
             return;
         }
  
-        geom.removeFromParent();
+        TreeMeshes last = newMeshes.getAndSet(treeMeshes);
+        if( last != null ) {
+            // A previous build was never applied
+            meshCache.release(last);
+        }
         
-        Mesh mesh = geom.getMesh();
-        releaseMesh(mesh);                           
+        // In case we were marked changed while setting newMeshes
+        if( isStale(stamp) ) {
+            meshCache.release(newMeshes.getAndSet(null));
+        }
     }
  
-    protected void releaseMesh( Mesh mesh ) {
-        // Delete the old buffers
-        for( VertexBuffer vb : mesh.getBufferList() ) {
-            if( log.isTraceEnabled() ) {
-                log.trace("--destroying buffer:" + vb);
+    /**
+     *  Called on the render thread when a particular level has
+     *  finished building.  The level replaces whatever was there
+     *  before, even if the other levels aren't ready yet.
+     */
+    protected void applyLevel( TreeMeshes source, int index, LevelGeometry level ) {
+        if( source != pendingMeshes ) {
+            // This level is from a tree that has since been superseded
+            return;
+        }
+        
+        log.trace("******* applying tree level:" + index + " ********" );
+ 
+        if( level != null ) {
+            if( source.isPreview() ) {
+                // The preview level stands in for all of the others
+                clearLevels();
+            } else if( lods[index] != null ) {
+                lods[index].release();
             }
-            BufferUtils.destroyDirectBuffer( vb.getData() );
-        }                            
-    }
+            
+            // Each applied level keeps its own reference to the meshes
+            // since the levels of older versions can be visible 
+            // until they are replaced.
+            meshCache.retain(source);
+            meshCache.release(lodMeshes[index]);
+            
+            lods[index] = level;
+            lodMeshes[index] = source;
+            level.setShowWire(showWire);
+            level.refreshCullHint();
+            refreshLevels();
+        }
         
-    protected void regenerateTree() {
-
-        LevelGeometry[] levels = new LevelGeometry[treeParameters.getLodCount()];       
-
-        TreeGenerator treeGen = new TreeGenerator();        
-        Tree tree = treeGen.generateTree(seed, treeParameters);
+        pendingLevels--;
+        if( pendingLevels == 0 ) {
+            log.trace("******* tree applied ********" );
+            meshCache.release(pendingMeshes);
+            pendingMeshes = null;
+            appliedGeneration = pendingStamp;
+        }       
+    }
  
-        BoundingBox trunkBounds = null;
-        BoundingBox leafBounds = null;
+    protected boolean clearLevel( int index ) {
+        if( lods[index] == null ) {
+            return false;
+        }
+        lods[index].release();
+        if( lods[index] == activeLevel ) {
+            setActiveLevel(null);
+        }
+        lods[index] = null;
+        meshCache.release(lodMeshes[index]);
+        lodMeshes[index] = null;
+        return true;
+    }
  
-        List<Vertex> baseTips = null;
+    protected void clearLevels() {
+        for( int i = 0; i < lods.length; i++ ) {
+            if( lods[i] != null ) {
+                lods[i].release();
+                lods[i] = null;
+            }
+            meshCache.release(lodMeshes[i]);
+            lodMeshes[i] = null;
+        }
+        setActiveLevel(null);
+    }
  
-        for( int i = 0; i < levels.length; i++ ) {
-            
-            LevelOfDetailParameters lodParms = treeParameters.getLod(i);
-            LevelGeometry level = new LevelGeometry(lodParms.distance);
-            levels[i] = level;
+    /**
+     *  Resets the LOD switch distances from the current parameters
+     *  without rebuilding any meshes.  Must be called on the render
+     *  thread.
+     */
+    public void refreshDistances() {
+        refreshLevels();
+    }
  
-            Mesh treeMesh;
-            List<Vertex> tips = null;
-            boolean generateLeaves = false;
-            
-            switch( lodParms.reduction ) {
-                case Normal:                 
-                    SkinnedTreeMeshGenerator meshGen = new SkinnedTreeMeshGenerator();
-        
-                    if( baseTips == null ) {
-                        baseTips = tips = new ArrayList<Vertex>();
-                    }
-                    treeMesh = meshGen.generateMesh(tree,
-                                                    treeParameters.getLod(i),
-                                                    treeParameters.getYOffset(), 
-                                                    treeParameters.getTextureURepeat(),
-                                                    treeParameters.getTextureVScale(),
-                                                    tips);
-                    trunkBounds = (BoundingBox)treeMesh.getBound();
- 
-                    level.treeGeom = new Geometry("tree:" + lodParms.reduction, treeMesh);
-                    level.treeGeom.setMaterial(treeMaterial);
-                    level.treeGeom.setShadowMode(RenderQueue.ShadowMode.CastAndReceive);
-                    level.treeGeom.setLocalTranslation(0, treeParameters.getRootHeight(), 0);
-
-                    level.wireGeom = new Geometry("wire:" + lodParms.reduction, treeMesh);
-                    level.wireGeom.setMaterial(wireMaterial);
-                    level.wireGeom.setLocalTranslation(0, treeParameters.getRootHeight(), 0);
-                    
-                    generateLeaves = true;
-                    break;
-                case FlatPoly:
-                    FlatPolyTreeMeshGenerator polyGen = new FlatPolyTreeMeshGenerator();
-                    if( baseTips == null ) {
-                        baseTips = tips = new ArrayList<Vertex>();
-                    }
-                    treeMesh = polyGen.generateMesh(tree, 
-                                                    treeParameters.getLod(i),
-                                                    treeParameters.getYOffset(), 
-                                                    treeParameters.getTextureURepeat(),
-                                                    treeParameters.getTextureVScale(),
-                                                    tips);
-
-                    level.treeGeom = new Geometry("tree:" + lodParms.reduction, treeMesh);
-                    level.treeGeom.setMaterial(flatMaterial);
-                    level.treeGeom.setShadowMode(RenderQueue.ShadowMode.CastAndReceive);
-                    level.treeGeom.setLocalTranslation(0, treeParameters.getRootHeight(), 0);
-                                    
-                    level.wireGeom = new Geometry("wire:" + lodParms.reduction, treeMesh);
-                    level.wireGeom.setMaterial(flatWireMaterial);
-                    level.wireGeom.setLocalTranslation(0, treeParameters.getRootHeight(), 0);
-                    
-                    generateLeaves = true;
-                    break;
-                case Impostor:
- 
-                    if( trunkBounds == null ) {
-                        // Generate the mesh just to throw it away
-                        meshGen = new SkinnedTreeMeshGenerator();
+    /**
+     *  Resets the LOD control to the current set of levels.  Any
+     *  level that has never been built is covered by the next
+     *  available level.  The switch distances always come from the
+     *  current parameters because they can change without the meshes
+     *  being regenerated.
+     */
+    protected void refreshLevels() {
+        LodSwitchControl lodControl = treeNode.getControl(LodSwitchControl.class);
+        lodControl.clearLevels();
         
-                        if( baseTips == null ) {
-                            baseTips = tips = new ArrayList<Vertex>();
-                        }
-                        treeMesh = meshGen.generateMesh(tree,
-                                                        treeParameters.getLod(0),
-                                                        treeParameters.getYOffset(), 
-                                                        treeParameters.getTextureURepeat(),
-                                                        treeParameters.getTextureVScale(),
-                                                        tips);
-                        trunkBounds = (BoundingBox)treeMesh.getBound();
-                        releaseMesh(treeMesh);
-                    }
-                    BoundingBox impostorBounds = (BoundingBox)trunkBounds.clone();
-                    
-                    if( leafBounds == null && treeParameters.getGenerateLeaves() ) {
-                        BillboardedLeavesMeshGenerator leafGen = new BillboardedLeavesMeshGenerator();
-                        Mesh leafMesh = leafGen.generateMesh(baseTips, treeParameters.getLeafScale());
-                        leafBounds = (BoundingBox)leafMesh.getBound();
-                        releaseMesh(leafMesh);
-                    } else if( treeParameters.getGenerateLeaves() ) {
-                        impostorBounds.mergeLocal(leafBounds);
-                    }  
- 
-                    float rootHeight = treeParameters.getRootHeight();
-                    Vector3f min = trunkBounds.getMin(null);
-                    Vector3f max = trunkBounds.getMax(null);
-                    if( leafBounds != null ) {
-                        min.minLocal(leafBounds.getMin(null));
-                        max.maxLocal(leafBounds.getMax(null));
-                    }
-                    //float radius = (max.y - min.y) * 0.5f; 
- 
-                    float xSize = Math.max(Math.abs(min.x), Math.abs(max.x));
-                    float ySize = max.y - min.y;
-                    float zSize = Math.max(Math.abs(min.z), Math.abs(max.z));
- 
-                    float size = ySize * 0.5f;
-                    size = Math.max(size, xSize);
-                    size = Math.max(size, zSize);
-                    float radius = size;
-                
-                    // Just do it here raw for now
-                    Mesh mesh = new Mesh();
-                    mesh.setBuffer(Type.Position, 3, new float[] {
-                                0, min.y + rootHeight, 0,
-                                0, min.y + rootHeight, 0,
-                                0, min.y + (size*2) + rootHeight, 0,
-                                0, min.y + (size*2) + rootHeight, 0
-                                //0, max.y + rootHeight, 0,
-                                //0, max.y + rootHeight, 0
-                            });
-                    mesh.setBuffer(Type.Size, 1, new float[] {
-                                -radius,
-                                radius, 
-                                -radius,
-                                radius
-                            });
-                    mesh.setBuffer(Type.TexCoord, 2, new float[] {
-                                0, 0,
-                                1, 0,
-                                0, 1f,
-                                1, 1f
-                            });
-                    mesh.setBuffer(Type.Index, 3, new short[] {
-                                0, 1, 3,
-                                0, 3, 2
-                            });
-                    //mesh.updateBound();
-                    
-                    // Give the mesh the same bound that the real tree would have
-                    // had.
-                    impostorBounds.getCenter().addLocal(0, treeParameters.getRootHeight(), 0); 
-                    mesh.setBound(impostorBounds);                                                
-
-                    level.treeGeom = new Geometry("tree:" + lodParms.reduction, mesh);
-                    level.treeGeom.setMaterial(impostorMaterial);
-                    level.treeGeom.setShadowMode(RenderQueue.ShadowMode.CastAndReceive);
-                    level.treeGeom.setLocalTranslation(0, 0, 0);
-                    level.treeGeom.setQueueBucket(Bucket.Transparent);
-                    
-                    level.wireGeom = new Geometry("wire:" + lodParms.reduction, mesh);
-                    level.wireGeom.setMaterial(impostorWireMaterial);
-                    level.wireGeom.setLocalTranslation(0, 0, 0);
-                    break;
+        float gap = Float.NaN;
+        for( int i = 0; i < lods.length; i++ ) {
+            LevelGeometry level = lods[i];
+            float distance = treeParameters.getLod(i).distance;
+            if( level == null ) {
+                if( Float.isNaN(gap) ) {
+                    gap = distance;
+                }
+                continue;
             }
+            level.attach(lodControl, Float.isNaN(gap) ? distance : gap);
+            gap = Float.NaN;
+        }
+        refreshActiveLevel();
+    }
  
-            if( generateLeaves && treeParameters.getGenerateLeaves() && baseTips != null ) {
-                BillboardedLeavesMeshGenerator leafGen = new BillboardedLeavesMeshGenerator();
-                Mesh leafMesh = leafGen.generateMesh(baseTips, treeParameters.getLeafScale());
-                leafBounds = (BoundingBox)leafMesh.getBound();
-                level.leafGeom = new Geometry("leaves:" + lodParms.reduction, leafMesh);
-                level.leafGeom.setShadowMode(RenderQueue.ShadowMode.CastAndReceive);  
-                level.leafGeom.setQueueBucket(Bucket.Transparent);  
-                level.leafGeom.setMaterial(leafMaterial);  
-                
-                level.leafGeom.setLocalTranslation(0, treeParameters.getRootHeight(), 0);
-            }
+    protected LevelGeometry createLevel( LevelMeshes meshes ) {
+ 
+        LevelGeometry level = new LevelGeometry(meshes);
+        
+        level.treeGeom = new Geometry("tree:" + meshes.reduction, meshes.treeMesh);
+        level.treeGeom.setMaterial(materials.getMaterial(meshes.reduction));
+        level.treeGeom.setShadowMode(RenderQueue.ShadowMode.CastAndReceive);
+        level.treeGeom.setLocalTranslation(0, meshes.yOffset, 0);
+        if( meshes.reduction == ReductionType.Impostor ) {
+            level.treeGeom.setQueueBucket(Bucket.Transparent);
         }
-
-        newLods = levels;
+        level.levelNode.attachChild(level.treeGeom);
+        
+        if( meshes.leafMesh != null ) {
+            level.leafGeom = new Geometry("leaves:" + meshes.reduction, meshes.leafMesh);
+            level.leafGeom.setShadowMode(RenderQueue.ShadowMode.CastAndReceive);  
+            level.leafGeom.setQueueBucket(Bucket.Transparent);  
+            level.leafGeom.setMaterial(materials.getLeafMaterial());  
+            level.leafGeom.setLocalTranslation(0, meshes.yOffset, 0);
+            level.levelNode.attachChild(level.leafGeom);
+        }
+        
+        return level;
     }    
  
+    /**
+     *  Notified when the level a tree displays changes, either because
+     *  the active level of detail changed or because a level was built
+     *  or released.
+     */
+    public interface LevelListener {
+        public void activeLevelChanged( TreeBuilderReference tree );
+    }
+ 
     /**
      *  Encapsulates all of the tree geometry for a
      *  particular level of detail.
      */   
     private class LevelGeometry {
  
-        float distance;
+        LevelMeshes meshes;
         Node levelNode;   
         Geometry treeGeom;
         Geometry wireGeom;
         Geometry leafGeom;
         
-        public LevelGeometry( float distance ) {
-            this.distance = distance;
+        public LevelGeometry( LevelMeshes meshes ) {
+            this.meshes = meshes;
+            this.levelNode = new Node("level:" + meshes.distance);
+        }
+ 
+        /**
+         *  The wireframe geometry is only created when it is
+         *  actually displayed.  Must be called on the render thread.
+         */       
+        public void setShowWire( boolean b ) {
+            if( b && wireGeom == null ) {
+                wireGeom = new Geometry("wire:" + meshes.reduction, meshes.treeMesh);
+                wireGeom.setMaterial(materials.getWireMaterial(meshes.reduction));
+                wireGeom.setLocalTranslation(0, meshes.yOffset, 0);
+                levelNode.attachChild(wireGeom);
+            } else if( !b && wireGeom != null ) {
+                wireGeom.removeFromParent();
+                wireGeom = null;
+            }
         }
 
-        public void attach( LodSwitchControl control ) {
-            levelNode = new Node("level:" + distance);
-            if( treeGeom != null ) {
-                levelNode.attachChild(treeGeom);                       
-                levelNode.attachChild(wireGeom);       
+        public void refreshCullHint() {
+            if( this != activeLevel ) {
+                levelNode.setCullHint(CullHint.Always);
+            } else if( impostorsBatched && meshes.reduction == ReductionType.Impostor ) {
+                levelNode.setCullHint(CullHint.Always);
+            } else {
+                levelNode.setCullHint(CullHint.Inherit);
             }
-            if( leafGeom != null ) {
-                levelNode.attachChild(leafGeom);
+        }
+ 
+        public void attach( LodSwitchControl control, float switchDistance ) {
+            if( levelNode.getParent() != treeNode ) {
+                treeNode.attachChild(levelNode);
             }
-            control.addLevel(distance, levelNode);            
+            
+            // Recorded on the node so that an exported clone can
+            // rebuild its own switch control
+            levelNode.setUserData(SWITCH_DISTANCE, switchDistance);
+            control.addLevel(switchDistance, levelNode);            
         }
         
         public void release() {
+            // The meshes are shared and owned by the TreeMeshes
+            // so we only need to detach.
             levelNode.removeFromParent();
-            releaseGeometry(treeGeom);
-            releaseGeometry(wireGeom);
-            releaseGeometry(leafGeom);
         }
-    }    
+    }
+ 
+    /**
+     *  Builds the geometry for one level of detail of a tree
+     *  as a separately scheduled task.
+     */
+    private class LevelBuilderReference implements BuilderReference {
+    
+        private TreeMeshes source;
+        private int index;
+        private int stamp;
+        private final int levelPriority;
+        private volatile LevelGeometry level;
+        
+        public LevelBuilderReference( TreeMeshes source, int index, int stamp ) {
+            this.source = source;
+            this.index = index;
+            this.stamp = stamp;
+            this.levelPriority = priority;
+        }
+        
+        @Override
+        public int getPriority() {
+            return levelPriority;
+        }
+        
+        @Override
+        public void build() {
+            if( isStale(stamp) ) {
+                // Don't even bother
+                return;
+            }
+            LevelMeshes meshes = source.getLevel(index);
+            if( meshes != null && !isStale(stamp) ) {
+                level = createLevel(meshes);
+            }
+        }
+        
+        @Override
+        public void apply( Builder builder ) {
+            applyLevel(source, index, level);
+        }
+        
+        @Override
+        public void release( Builder builder ) {
+        }
+    }
+ 
+    /**
+     *  One queued build of this tree.  The priority is fixed when the
+     *  request is created so that the builder's ordering doesn't change
+     *  underneath it.  Cancelled requests skip building but still apply
+     *  in case a newer request's build found the work already done.
+     */
+    private class BuildRequest implements BuilderReference {
+        private final int priority;
+        private volatile boolean cancelled;
+        
+        public BuildRequest( int priority ) {
+            this.priority = priority;
+        }
+        
+        @Override
+        public int getPriority() {
+            return priority;
+        }
+        
+        @Override
+        public void build() {
+            if( cancelled ) {
+                return;
+            }
+            TreeBuilderReference.this.build();
+        }
+        
+        @Override
+        public void apply( Builder builder ) {
+            TreeBuilderReference.this.apply(builder);
+        }
+        
+        @Override
+        public void release( Builder builder ) {
+        }
+    }
 }
-
-
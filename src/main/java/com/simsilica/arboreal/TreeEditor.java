@@ -52,6 +52,7 @@ import com.simsilica.lemur.style.BaseStyles;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.prefs.BackingStoreException;
 import javax.imageio.ImageIO;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -67,11 +68,67 @@ public class TreeEditor extends SimpleApplication {
 
     public static final String GLASS_STYLES = "/com/simsilica/arboreal/ui/glass-styles.groovy";
  
+    /**
+     *  The preferences key that the app's settings are saved under.  This
+     *  is the title, which is also what the settings dialog uses.
+     */
+    public static final String PREFERENCES_KEY = "SimArboreal Tree Editor";
+ 
+    /**
+     *  AppSettings key for the number of background threads used
+     *  to build trees.  Can be set from the command line with
+     *  --builder-threads=n and is remembered for later runs.
+     */
+    public static final String SETTING_BUILDER_THREADS = "BuilderThreads";
+    
+    /**
+     *  AppSettings key for the maximum number of finished builds that
+     *  are applied to the scene per frame.  Can be set from the command
+     *  line with --builder-updates=n and is remembered for later runs.
+     */
+    public static final String SETTING_BUILDER_UPDATES = "BuilderUpdates";
+ 
     public static void main( String... args ) {        
-        TreeEditor main = new TreeEditor();
 
         AppSettings settings = new AppSettings(false);
-        settings.setTitle("SimArboreal Tree Editor");
+        
+        // Leave one core for the render thread by default
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        settings.putInteger(SETTING_BUILDER_THREADS, threads);
+        settings.putInteger(SETTING_BUILDER_UPDATES, threads);
+        
+        // Anything saved from an earlier run overrides the defaults
+        try {
+            settings.load(PREFERENCES_KEY);
+        } catch( BackingStoreException e ) {
+            log.warn("Error loading settings", e);
+        }
+        
+        // Command line values override both and are saved for next time
+        boolean changed = false;
+        for( String arg : args ) {
+            if( arg.startsWith("--builder-threads=") ) {
+                settings.putInteger(SETTING_BUILDER_THREADS, parseCount(arg));
+                changed = true;
+            } else if( arg.startsWith("--builder-updates=") ) {
+                settings.putInteger(SETTING_BUILDER_UPDATES, parseCount(arg));
+                changed = true;
+            } else {
+                log.warn("Unknown argument:" + arg);
+            }
+        }
+        if( changed ) {
+            try {
+                settings.save(PREFERENCES_KEY);
+            } catch( BackingStoreException e ) {
+                log.warn("Error saving settings", e);
+            }
+        }
+        
+        TreeEditor main = new TreeEditor(settings.getInteger(SETTING_BUILDER_THREADS),
+                                         settings.getInteger(SETTING_BUILDER_UPDATES));
+        
+        settings.setTitle(PREFERENCES_KEY);
         settings.setSettingsDialogImage("/com/simsilica/arboreal/images/TreeEditor-Splash.png");
         
         try {
@@ -90,9 +147,27 @@ public class TreeEditor extends SimpleApplication {
         main.start();
     }
  
+    private static int parseCount( String arg ) {
+        String value = arg.substring(arg.indexOf('=') + 1);
+        try {
+            return Math.max(1, Integer.parseInt(value));
+        } catch( NumberFormatException e ) {
+            throw new IllegalArgumentException("Invalid count in argument:" + arg, e);
+        }
+    }
+ 
     public TreeEditor() {
+        this(1, 1);
+    }
+    
+    /**
+     *  Creates a tree editor that will build trees using the specified
+     *  number of background threads and that will apply at most
+     *  maxUpdates finished builds to the scene each frame.
+     */
+    public TreeEditor( int builderThreads, int maxUpdates ) {
         super(new StatsAppState(), new DebugKeysAppState(),
-              new BuilderState(1, 1),
+              new BuilderState(builderThreads, maxUpdates),
               new MovementState(),
               new DebugHudState(),
               new TreeOptionsState(),
@@ -102,12 +177,20 @@ public class TreeEditor extends SimpleApplication {
               new AvatarState(),
               new TreeParametersState(),
               new ForestGridState(),
-              new AtlasGeneratorState(),
+              new AtlasGeneratorState(getProcessingThreads(builderThreads)),
               new FileActionsState(),              
               new PostProcessorState(), 
               new ScreenshotAppState("", System.currentTimeMillis())); 
     }
 
+    /**
+     *  The atlas post-processing gets a share of the builder threads
+     *  but never more than two.
+     */
+    private static int getProcessingThreads( int builderThreads ) {
+        return Math.min(2, Math.max(1, builderThreads / 2));
+    }
+ 
     public void toggleRecordVideo() {
         VideoRecorderAppState recorder = stateManager.getState(VideoRecorderAppState.class);
         if( recorder == null ) {
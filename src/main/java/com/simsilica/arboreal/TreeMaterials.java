@@ -0,0 +1,330 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal;
+
+import com.jme3.material.MatParam;
+import com.jme3.material.Material;
+import com.jme3.material.MaterialDef;
+import com.jme3.math.ColorRGBA;
+import com.simsilica.arboreal.LevelOfDetailParameters.ReductionType;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ *  Registry of the materials shared by all of the trees in a
+ *  forest.  The wireframe variants are derived on first use and
+ *  then shared by every tree.  Callers should treat all of the
+ *  returned materials as read-only.
+ *
+ *  @author    Paul Speed
+ */
+public class TreeMaterials {
+
+    static Logger log = LoggerFactory.getLogger(TreeMaterials.class);
+
+    private final Material treeMaterial;
+    private final Material wireMaterial;
+    private final Material leafMaterial;
+    private final Material flatMaterial;
+    private final Material impostorMaterial;
+    private final Material impostorBatchMaterial;
+    
+    private Material flatWireMaterial;
+    private Material impostorWireMaterial;
+    private Material impostorBatchWireMaterial;
+    private AtlasLayout atlasLayout = AtlasLayout.DEFAULT;
+    
+    // Instancing variants of any of the above, keyed by the 
+    // original material.  A null value means the material doesn't
+    // support instancing.
+    private final Map<Material, Material> instanced = new IdentityHashMap<Material, Material>();
+    
+    // Bumped whenever one of the source materials is modified so that
+    // the instancing variants are only refreshed when something changed.
+    private int version;
+    private int refreshedVersion;
+    private int batchRefreshedVersion = -1;
+    
+    public TreeMaterials( Material treeMaterial, 
+                          Material wireMaterial,
+                          Material leafMaterial,
+                          Material flatMaterial,
+                          Material impostorMaterial,
+                          Material impostorBatchMaterial ) {
+        this.treeMaterial = treeMaterial;
+        this.wireMaterial = wireMaterial;
+        this.leafMaterial = leafMaterial;
+        this.flatMaterial = flatMaterial;
+        this.impostorMaterial = impostorMaterial;
+        this.impostorBatchMaterial = impostorBatchMaterial;
+        atlasLayout.apply(impostorMaterial);
+        atlasLayout.apply(impostorBatchMaterial);
+    }
+    
+    public Material getTreeMaterial() {
+        return treeMaterial;
+    }
+    
+    public Material getWireMaterial() {
+        return wireMaterial;
+    }
+    
+    public Material getLeafMaterial() {
+        return leafMaterial;
+    }
+    
+    public Material getFlatMaterial() {
+        return flatMaterial;
+    }
+    
+    /**
+     *  Sets the layout of the atlas that the impostor material's
+     *  textures were rendered with.  Any instanced variants pick up
+     *  the changes on their next refresh.
+     */
+    public synchronized void setAtlasLayout( AtlasLayout atlasLayout ) {
+        this.atlasLayout = atlasLayout;
+        atlasLayout.apply(impostorMaterial);
+        atlasLayout.apply(impostorBatchMaterial);
+        version++;
+    }
+    
+    public synchronized AtlasLayout getAtlasLayout() {
+        return atlasLayout;
+    }
+ 
+    public Material getImpostorMaterial() {
+        return impostorMaterial;
+    }
+ 
+    /**
+     *  Returns the material used to draw batches of impostors.  It
+     *  takes the tree yaw from the batch's vertexes and otherwise
+     *  follows the impostor material's textures and settings, which
+     *  are copied over by refreshImpostorBatchMaterial().
+     */
+    public Material getImpostorBatchMaterial() {
+        return impostorBatchMaterial;
+    }
+ 
+    public synchronized Material getFlatWireMaterial() {
+        if( flatWireMaterial == null ) {
+            // We'll derive the flat wire material from the flat material
+            flatWireMaterial = createWireMaterial(flatMaterial);
+        }
+        return flatWireMaterial;
+    }
+    
+    public synchronized Material getImpostorWireMaterial() {
+        if( impostorWireMaterial == null ) {
+            impostorWireMaterial = createWireMaterial(impostorMaterial);
+        }
+        return impostorWireMaterial;
+    }
+    
+    public synchronized Material getImpostorBatchWireMaterial() {
+        if( impostorBatchWireMaterial == null ) {
+            impostorBatchWireMaterial = createWireMaterial(impostorBatchMaterial);
+        }
+        return impostorBatchWireMaterial;
+    }
+ 
+    /**
+     *  Returns the trunk material for the specified type of
+     *  level of detail.
+     */
+    public Material getMaterial( ReductionType reduction ) {
+        switch( reduction ) {
+            case FlatPoly:
+                return flatMaterial;
+            case Impostor:
+                return impostorMaterial;
+            case Normal:
+            default:
+                return treeMaterial;
+        }
+    }
+ 
+    /**
+     *  Returns the wireframe material for the specified type of
+     *  level of detail.
+     */
+    public Material getWireMaterial( ReductionType reduction ) {
+        switch( reduction ) {
+            case FlatPoly:
+                return getFlatWireMaterial();
+            case Impostor:
+                return getImpostorWireMaterial();
+            case Normal:
+            default:
+                return wireMaterial;
+        }
+    }
+    
+    /**
+     *  Must be called after modifying the parameters of any of the 
+     *  source materials so that their instancing variants pick up the 
+     *  change on the next refresh.
+     */
+    public synchronized void markChanged() {
+        version++;
+    }
+ 
+    /**
+     *  Returns true if any of the tree, leaf, flat, or impostor materials 
+     *  support instancing.  If none of them do then instancing the forest 
+     *  would just draw everything as regular geometry.
+     */
+    public boolean isInstancingSupported() {
+        return supportsInstancing(treeMaterial) || supportsInstancing(leafMaterial)
+                || supportsInstancing(flatMaterial) || supportsInstancing(impostorMaterial);
+    }
+ 
+    /**
+     *  Returns true if the specified material's definition has a
+     *  UseInstancing parameter.
+     */
+    public static boolean supportsInstancing( Material material ) {
+        return material.getMaterialDef().getMaterialParam("UseInstancing") != null;
+    }
+ 
+    /**
+     *  Returns a shared variant of the specified material with instancing
+     *  turned on or null if the material does not support instancing.
+     *  The variants are kept up to date with their source materials by
+     *  refreshInstancedMaterials().
+     */
+    public synchronized Material getInstancedMaterial( Material source ) {
+        if( instanced.containsKey(source) ) {
+            return instanced.get(source);
+        }
+        Material result = null;
+        if( supportsInstancing(source) ) {
+            result = source.clone();
+            result.setBoolean("UseInstancing", true);
+        } else {
+            log.info("Material does not support instancing:" + source.getMaterialDef().getAssetName());
+        }
+        instanced.put(source, result);
+        return result;
+    }
+ 
+    /**
+     *  Copies any parameters that have changed on the source materials
+     *  to their instancing variants if markChanged() has been called since
+     *  the last refresh.  The source materials are modified for wind, 
+     *  textures, and so on at runtime so this should be called once a frame 
+     *  while instancing is in use.  
+     */
+    public synchronized void refreshInstancedMaterials() {
+        if( refreshedVersion == version ) {
+            return;
+        }
+        refreshedVersion = version;
+        for( Map.Entry<Material, Material> e : instanced.entrySet() ) {
+            Material source = e.getKey();
+            Material target = e.getValue();
+            if( target == null ) {
+                continue;
+            }
+            for( MatParam param : source.getParams() ) {
+                MatParam existing = target.getParam(param.getName());
+                if( existing != null && param.getValue().equals(existing.getValue()) ) {
+                    continue;
+                }
+                target.setParam(param.getName(), param.getVarType(), param.getValue());
+            }
+            for( MatParam param : new ArrayList<MatParam>(target.getParams()) ) {
+                if( "UseInstancing".equals(param.getName()) ) {
+                    continue;
+                }
+                if( source.getParam(param.getName()) == null ) {
+                    target.clearParam(param.getName());
+                }
+            }
+        }
+    }
+    
+    /**
+     *  Copies the impostor material's parameters that the batch material
+     *  also declares if markChanged() has been called since the last 
+     *  refresh.  Should be called once a frame while impostors are being 
+     *  batched.
+     */
+    public synchronized void refreshImpostorBatchMaterial() {
+        if( batchRefreshedVersion == version ) {
+            return;
+        }
+        batchRefreshedVersion = version;
+        
+        MaterialDef sourceDef = impostorMaterial.getMaterialDef();
+        MaterialDef targetDef = impostorBatchMaterial.getMaterialDef();
+        for( MatParam param : impostorMaterial.getParams() ) {
+            if( targetDef.getMaterialParam(param.getName()) == null ) {
+                continue;
+            }
+            MatParam existing = impostorBatchMaterial.getParam(param.getName());
+            if( existing != null && param.getValue().equals(existing.getValue()) ) {
+                continue;
+            }
+            impostorBatchMaterial.setParam(param.getName(), param.getVarType(), param.getValue());
+        }
+        for( MatParam param : new ArrayList<MatParam>(impostorBatchMaterial.getParams()) ) {
+            // Only the parameters that the impostor material could
+            // have set are cleared, the layout is set separately
+            if( sourceDef.getMaterialParam(param.getName()) == null ) {
+                continue;
+            }
+            if( impostorMaterial.getParam(param.getName()) == null ) {
+                impostorBatchMaterial.clearParam(param.getName());
+            }
+        }
+    }
+    
+    protected Material createWireMaterial( Material source ) {
+        Material result = source.clone();
+        result.clearParam("DiffuseMap");
+        result.setColor("Diffuse", ColorRGBA.Yellow.mult(10));
+        result.setColor("Ambient", ColorRGBA.Yellow.mult(10));
+        result.getAdditionalRenderState().setWireframe(true);
+        return result;
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ *  Hands out reference counted TreeMeshes keyed by seed and 
+ *  TreeParameters version so that every grid cell that uses the same
+ *  seed shares the same generated meshes.  A forest grid usually only
+ *  has 'seed range' distinct trees in it no matter how many cells
+ *  there are.
+ *
+ *  @author    Paul Speed
+ */
+public class TreeMeshCache {
+
+    static Logger log = LoggerFactory.getLogger(TreeMeshCache.class);
+
+    private TreeParameters treeParameters;
+    private TreeSkeletonCache skeletons;
+    private final Map<Key, TreeMeshes> cache = new HashMap<Key, TreeMeshes>();
+    private volatile int version;
+    private volatile TreeSkeletonCache.Snapshot skeleton;
+    
+    public TreeMeshCache( TreeParameters treeParameters, TreeSkeletonCache skeletons ) {
+        this.treeParameters = treeParameters;
+        this.skeletons = skeletons;
+        this.skeleton = TreeSkeletonCache.snapshot(treeParameters);
+    }
+ 
+    public TreeParameters getTreeParameters() {
+        return treeParameters;
+    }
+    
+    public TreeSkeletonCache getSkeletonCache() {
+        return skeletons;
+    }
+ 
+    /**
+     *  Called when the tree parameters have changed so that
+     *  subsequent acquire() calls will produce new meshes.  Meshes
+     *  for older versions remain valid until they are released.
+     *  This also takes the skeleton snapshot that new meshes will be
+     *  generated from so it must be called on the thread that edits
+     *  the parameters.
+     */
+    public void markChanged() {
+        skeleton = TreeSkeletonCache.snapshot(treeParameters);
+        version++;
+    }
+    
+    public int getVersion() {
+        return version;
+    }
+ 
+    /**
+     *  Returns the shared meshes for the specified seed and the
+     *  current version, creating a new entry if necessary.  The
+     *  meshes themselves are generated on demand by the
+     *  TreeMeshes.  Every call to acquire() must be
+     *  balanced by a call to release().
+     */
+    public TreeMeshes acquire( int seed ) {
+        return acquire(seed, false);
+    }
+    
+    /**
+     *  Returns the shared meshes for the specified seed and the 
+     *  current version.  If preview is true then the meshes will
+     *  only contain a single cheap level suitable for interactive
+     *  editing.
+     */
+    public synchronized TreeMeshes acquire( int seed, boolean preview ) {
+        Key key = new Key(seed, version, preview);
+        TreeMeshes result = cache.get(key);
+        if( result == null ) {
+            result = new TreeMeshes(skeletons, skeleton, seed, key.version, preview);
+            cache.put(key, result);
+        }
+        result.incrementRefCount();
+        return result;
+    }
+ 
+    /**
+     *  Adds an additional reference to meshes that were previously
+     *  acquired.
+     */
+    public synchronized void retain( TreeMeshes meshes ) {
+        meshes.incrementRefCount();
+    }
+ 
+    /**
+     *  Releases a reference to the specified meshes, destroying
+     *  their buffers if this was the last reference.
+     */   
+    public void release( TreeMeshes meshes ) {
+        if( meshes == null ) {
+            return;
+        }
+        synchronized( this ) {
+            if( meshes.decrementRefCount() > 0 ) {
+                return;
+            }
+            cache.remove(new Key(meshes.getSeed(), meshes.getVersion(), meshes.isPreview()));
+        }
+        if( log.isTraceEnabled() ) {
+            log.trace("Releasing:" + meshes);
+        }
+        meshes.release();
+    }
+ 
+    /**
+     *  Returns the number of distinct trees currently held
+     *  by the cache.
+     */
+    public synchronized int getSize() {
+        return cache.size();
+    }
+    
+    private static class Key {
+        int seed;
+        int version;
+        boolean preview;
+        
+        public Key( int seed, int version, boolean preview ) {
+            this.seed = seed;
+            this.version = version;
+            this.preview = preview;
+        }
+        
+        @Override
+        public int hashCode() {
+            return 31 * (31 * seed + version) + (preview ? 1 : 0);
+        }
+        
+        @Override
+        public boolean equals( Object o ) {
+            if( o == this ) {
+                return true;
+            }
+            if( o == null || o.getClass() != getClass() ) {
+                return false;
+            }
+            Key other = (Key)o;
+            return seed == other.seed && version == other.version && preview == other.preview;
+        }
+    }
+}
@@ -0,0 +1,508 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal;
+
+
+import com.jme3.bounding.BoundingBox;
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.VertexBuffer.Type;
+import com.simsilica.arboreal.LevelOfDetailParameters.ReductionType;
+import com.simsilica.arboreal.mesh.BillboardedLeavesMeshGenerator;
+import com.simsilica.arboreal.mesh.FlatPolyTreeMeshGenerator;
+import com.simsilica.arboreal.mesh.SkinnedTreeMeshGenerator;
+import com.simsilica.arboreal.mesh.Vertex;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ *  The meshes for all of the levels of detail of one distinct
+ *  tree, ie: one seed of one version of the TreeParameters.
+ *  Instances are handed out by the TreeMeshCache and are reference
+ *  counted so that any number of grid cells can share the same
+ *  buffers.  The buffers are only destroyed when the last user
+ *  releases them.
+ *
+ *  <p>The tree skeleton is generated once and then each level of
+ *  detail can be generated independently, potentially on different
+ *  threads.  Levels that depend on the results of other levels
+ *  (leaves on the base tips, impostors on the tree bounds) will
+ *  generate or wait for those levels as needed.</p>
+ *
+ *  @author    Paul Speed
+ */
+public class TreeMeshes {
+
+    static Logger log = LoggerFactory.getLogger(TreeMeshes.class);
+
+    private final TreeSkeletonCache skeletons;
+    private final TreeSkeletonCache.Snapshot skeleton;
+    
+    // The snapshot's copy of the parameters.  The builder threads
+    // never read the live parameters.
+    private final TreeParameters treeParameters;
+    private final int seed;
+    private final int version;
+    private final boolean preview;
+    
+    // Guarded by the owning cache
+    private int refCount;
+ 
+    private final Object treeLock = new Object();   
+    private Tree tree;
+    
+    private final LevelMeshes[] levels;
+    
+    // The level whose tips are used to generate all of
+    // the leaves.
+    private final int baseIndex;
+    
+    // The one leaf mesh shared by all of the leafy levels.  The 
+    // TreeMeshes holds one reference and each level holds another.
+    private final Object leafLock = new Object();
+    private volatile SharedMesh leafMesh;
+    private final AtomicBoolean leafReleased = new AtomicBoolean(); 
+    
+    // Calculated once for all impostor levels
+    private final Object boundsLock = new Object();
+    private BoundingBox trunkBounds;
+    private BoundingBox leafBounds;
+    
+    private volatile boolean released;
+    
+    public TreeMeshes( TreeSkeletonCache skeletons, TreeSkeletonCache.Snapshot skeleton,
+                       int seed, int version ) {
+        this(skeletons, skeleton, seed, version, false);
+    }
+    
+    /**
+     *  Creates tree meshes that will be generated for the specified
+     *  seed from the parameters captured in the specified snapshot.  If 
+     *  preview is true then only a single cheap FlatPoly level is generated 
+     *  using the LOD 0 parameters.  The tree skeleton itself comes from 
+     *  the shared skeleton cache and the levels of detail, leaves, and
+     *  offsets all come from the same snapshot.
+     */
+    public TreeMeshes( TreeSkeletonCache skeletons, TreeSkeletonCache.Snapshot skeleton,
+                       int seed, int version, boolean preview ) {
+        this.skeletons = skeletons;
+        this.skeleton = skeleton;
+        this.treeParameters = skeleton.getParameters();
+        this.seed = seed;
+        this.version = version;
+        this.preview = preview;
+        
+        if( preview ) {
+            this.levels = new LevelMeshes[] { new LevelMeshes(ReductionType.FlatPoly, 0) };
+            this.baseIndex = 0;
+            return;
+        }
+        
+        this.levels = new LevelMeshes[treeParameters.getLodCount()];
+        int base = -1;
+        for( int i = 0; i < levels.length; i++ ) {
+            LevelOfDetailParameters lodParms = treeParameters.getLod(i);
+            levels[i] = new LevelMeshes(lodParms.reduction, lodParms.distance);
+            if( base < 0 && lodParms.reduction != ReductionType.Impostor ) {
+                base = i;
+            }
+        }
+        this.baseIndex = base;
+    }
+ 
+    public int getSeed() {
+        return seed;
+    }
+    
+    public int getVersion() {
+        return version;
+    }
+ 
+    public boolean isPreview() {
+        return preview;
+    }
+ 
+    public ReductionType getReduction( int index ) {
+        return levels[index].reduction;
+    }
+ 
+    public int getLevelCount() {
+        return levels.length;
+    }
+ 
+    public boolean isReleased() {
+        return released;
+    }
+ 
+    protected int incrementRefCount() {
+        return ++refCount;
+    }
+    
+    protected int decrementRefCount() {
+        return --refCount;
+    }
+ 
+    /**
+     *  Returns the tree skeleton shared by all of the levels, generating
+     *  it if no other level has done so already.  Returns null if these
+     *  meshes were released before the tree could be generated.
+     */
+    public Tree getTree() {
+        synchronized( treeLock ) {
+            if( tree == null ) {
+                if( released ) {
+                    return null;
+                }
+                log.trace("******* retrieving tree for seed:" + seed + " version:" + version + " ********");
+                tree = skeletons.getTree(seed, skeleton);
+            }
+            return tree;
+        }
+    }
+ 
+    /**
+     *  Returns the meshes for the specified level of detail, generating
+     *  them first if no other user of this tree has done so already.
+     *  Callers that arrive while another thread is generating the same
+     *  level will simply wait for the results.  Returns null if these
+     *  meshes have already been released.
+     */
+    public LevelMeshes getLevel( int index ) {
+        LevelMeshes level = levels[index];
+        synchronized( level ) {
+            if( !level.generated && !released ) {
+                generateLevel(index, level);
+                level.generated = true;
+                
+                // If we were released while generating then it's
+                // up to us to clean up.
+                if( released ) {
+                    level.release();
+                }
+            }
+        }
+        return released ? null : level;
+    }
+ 
+    /**
+     *  Destroys all of the buffers.  Called by the cache when the last
+     *  reference has been released.  Levels that are still being generated
+     *  will abandon their work at the next step and clean up after 
+     *  themselves.
+     */
+    protected void release() {
+        released = true;
+        for( LevelMeshes level : levels ) {
+            if( level.generated ) {
+                level.release();
+            }
+        }
+        if( leafMesh != null ) {
+            releaseLeafMesh();
+        }
+    }
+    
+    private void releaseLeafMesh() {
+        if( leafReleased.compareAndSet(false, true) ) {
+            leafMesh.release();
+        }
+    }
+ 
+    /**
+     *  Returns a new reference to the leaf mesh shared by every level
+     *  that is built from the base tips, generating it if no other level
+     *  has done so already.  Leaf generation only depends on the base
+     *  tips so it can run while the other levels are still meshing their
+     *  trunks.  The base level passes its own tips and every other level
+     *  passes null.  Returns null if there are no leaves or if these meshes 
+     *  were released.
+     */
+    protected SharedMesh acquireLeafMesh( List<Vertex> tips ) {
+    
+        // Resolve the tips before locking so that we never wait on the
+        // base level while holding the leaf lock.
+        List<Vertex> baseTips = tips != null ? tips : getBaseTips();
+        
+        synchronized( leafLock ) {
+            if( leafMesh == null ) {
+                if( baseTips == null || released ) {
+                    return null;
+                }
+                log.trace("******* generating leaves for seed:" + seed + " ********");
+                BillboardedLeavesMeshGenerator leafGen = new BillboardedLeavesMeshGenerator();
+                leafMesh = new SharedMesh(leafGen.generateMesh(baseTips, treeParameters.getLeafScale()));
+                if( released ) {
+                    releaseLeafMesh();
+                }
+            }
+            if( released ) {
+                return null;
+            }
+            return leafMesh.acquire();
+        }
+    }
+ 
+    public static void releaseMesh( Mesh mesh ) {
+        if( mesh == null ) {
+            return;
+        }
+        
+        // Pooled buffers go back for the next build and the rest
+        // are destroyed
+        BufferPool pool = BufferPool.getInstance();
+        for( VertexBuffer vb : mesh.getBufferList() ) {
+            if( log.isTraceEnabled() ) {
+                log.trace("--releasing buffer:" + vb);
+            }
+            pool.release(vb.getData());
+        }                            
+    }
+ 
+    protected List<Vertex> getBaseTips() {
+        if( baseIndex < 0 ) {
+            return null;
+        }
+        LevelMeshes base = getLevel(baseIndex);
+        return base == null ? null : base.tips;
+    }
+    
+    protected void generateLevel( int index, LevelMeshes level ) {
+ 
+        log.trace("******* generating level:" + index + " for seed:" + seed + " ********");
+        
+        LevelOfDetailParameters lodParms = treeParameters.getLod(index);
+        List<Vertex> tips = index == baseIndex ? new ArrayList<Vertex>() : null;
+ 
+        // Between each step we check to see if anyone still wants
+        // the results.  Whatever was generated so far will be released
+        // by getLevel().
+        if( level.reduction == ReductionType.Impostor ) {
+            level.treeMesh = generateImpostor();
+            level.yOffset = 0;
+            return;
+        }
+        
+        Tree tree = getTree();
+        if( tree == null || released ) {
+            return;
+        }
+             
+        switch( level.reduction ) {
+            case Normal:                 
+                SkinnedTreeMeshGenerator meshGen = new SkinnedTreeMeshGenerator();
+                level.treeMesh = meshGen.generateMesh(tree,
+                                                      lodParms,
+                                                      treeParameters.getYOffset(), 
+                                                      treeParameters.getTextureURepeat(),
+                                                      treeParameters.getTextureVScale(),
+                                                      tips);
+                level.yOffset = treeParameters.getRootHeight();
+                break;
+            case FlatPoly:
+                FlatPolyTreeMeshGenerator polyGen = new FlatPolyTreeMeshGenerator();
+                level.treeMesh = polyGen.generateMesh(tree, 
+                                                      lodParms,
+                                                      treeParameters.getYOffset(), 
+                                                      treeParameters.getTextureURepeat(),
+                                                      treeParameters.getTextureVScale(),
+                                                      tips);
+                level.yOffset = treeParameters.getRootHeight();
+                break;
+        }
+        level.tips = tips; 
+        if( released ) {
+            return;
+        }
+ 
+        if( treeParameters.getGenerateLeaves() ) {
+            level.leaves = acquireLeafMesh(tips);
+            if( level.leaves != null ) {
+                level.leafMesh = level.leaves.getMesh();
+            }
+        }
+    }
+ 
+    /**
+     *  Calculates the trunk and leaf bounds used to size the impostors.
+     *  This is done once no matter how many impostor levels there are.
+     *  The bounds come from a walk of the skeleton rather than from any 
+     *  generated mesh, so impostor-only chains don't have to build a 
+     *  throwaway mesh and the quads match the atlas, which is framed from 
+     *  the same walk.  Returns false if the meshes were released before 
+     *  the bounds could be calculated.
+     */
+    protected boolean calculateBounds() {
+        synchronized( boundsLock ) {
+            if( trunkBounds != null ) {
+                return true;
+            }
+ 
+            Tree tree = getTree();
+            if( tree == null || released ) {
+                return false;
+            }
+            
+            TreeBounds bounds = TreeBounds.calculate(tree, treeParameters.getYOffset());
+            if( treeParameters.getGenerateLeaves() ) {
+                leafBounds = bounds.getTipBounds();
+            }
+            trunkBounds = bounds.getTrunkBounds();
+            return true;
+        }
+    }
+ 
+    protected Mesh generateImpostor() {
+ 
+        // The impostor needs to be the same size as the highest level
+        // of detail tree since that's what the atlas renders.
+        if( !calculateBounds() ) {
+            return null;
+        }
+        
+        BoundingBox impostorBounds = (BoundingBox)trunkBounds.clone();
+        if( leafBounds != null ) {
+            impostorBounds.mergeLocal(leafBounds);
+        }  
+ 
+        float rootHeight = treeParameters.getRootHeight();
+        Vector3f min = trunkBounds.getMin(null);
+        Vector3f max = trunkBounds.getMax(null);
+        if( leafBounds != null ) {
+            min.minLocal(leafBounds.getMin(null));
+            max.maxLocal(leafBounds.getMax(null));
+        }
+        //float radius = (max.y - min.y) * 0.5f; 
+ 
+        float xSize = Math.max(Math.abs(min.x), Math.abs(max.x));
+        float ySize = max.y - min.y;
+        float zSize = Math.max(Math.abs(min.z), Math.abs(max.z));
+ 
+        float size = ySize * 0.5f;
+        size = Math.max(size, xSize);
+        size = Math.max(size, zSize);
+        float radius = size;
+                
+        // Just do it here raw for now.  The buffers come from the pool
+        // since impostors are rebuilt on every parameter change.
+        BufferPool pool = BufferPool.getInstance();
+        FloatBuffer pos = pool.acquireFloats(4 * 3);
+        pos.put(0).put(min.y + rootHeight).put(0);
+        pos.put(0).put(min.y + rootHeight).put(0);
+        pos.put(0).put(min.y + (size*2) + rootHeight).put(0);
+        pos.put(0).put(min.y + (size*2) + rootHeight).put(0);
+        //0, max.y + rootHeight, 0,
+        //0, max.y + rootHeight, 0
+        
+        FloatBuffer sizes = pool.acquireFloats(4);
+        sizes.put(-radius).put(radius).put(-radius).put(radius);
+        
+        FloatBuffer texes = pool.acquireFloats(4 * 2);
+        texes.put(0).put(0);
+        texes.put(1).put(0);
+        texes.put(0).put(1f);
+        texes.put(1).put(1f);
+        
+        ShortBuffer indexes = pool.acquireShorts(6);
+        indexes.put((short)0).put((short)1).put((short)3);
+        indexes.put((short)0).put((short)3).put((short)2);
+        
+        pos.flip();
+        sizes.flip();
+        texes.flip();
+        indexes.flip();
+        
+        Mesh mesh = new Mesh();
+        mesh.setBuffer(Type.Position, 3, pos);
+        mesh.setBuffer(Type.Size, 1, sizes);
+        mesh.setBuffer(Type.TexCoord, 2, texes);
+        mesh.setBuffer(Type.Index, 3, indexes);
+        //mesh.updateBound();
+                    
+        // Give the mesh the same bound that the real tree would have
+        // had.
+        impostorBounds.getCenter().addLocal(0, rootHeight, 0); 
+        mesh.setBound(impostorBounds);
+        
+        return mesh;                                                
+    }
+    
+    @Override
+    public String toString() {
+        return "TreeMeshes[seed=" + seed + ", version=" + version + ", preview=" + preview + "]";
+    }
+ 
+    /**
+     *  The raw meshes for a particular level of detail.  The
+     *  meshes are shared and must not be modified.
+     */   
+    public static class LevelMeshes {
+        ReductionType reduction;
+        float distance;
+        float yOffset;
+        Mesh treeMesh;
+        Mesh leafMesh;
+        SharedMesh leaves;
+        List<Vertex> tips;
+        
+        volatile boolean generated;
+        private final AtomicBoolean released = new AtomicBoolean();
+        
+        public LevelMeshes( ReductionType reduction, float distance ) {
+            this.reduction = reduction;
+            this.distance = distance;
+        }
+        
+        protected void release() {
+            if( !released.compareAndSet(false, true) ) {
+                return;
+            }
+            releaseMesh(treeMesh);
+            
+            // The leaves are shared with the other levels
+            if( leaves != null ) {
+                leaves.release();
+            }
+        }
+    }
+}
@@ -49,11 +49,13 @@ import com.simsilica.lemur.TabbedPanel;
 import com.simsilica.lemur.component.BorderLayout;
 import com.simsilica.lemur.component.SpringGridLayout;
 import com.simsilica.lemur.core.VersionedHolder;
+import com.simsilica.lemur.core.VersionedObject;
 import com.simsilica.lemur.core.VersionedReference;
 import com.simsilica.lemur.event.BaseAppState;
 import com.simsilica.lemur.props.PropertyPanel;
 import com.simsilica.lemur.style.ElementId;
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -71,15 +73,17 @@ public class TreeParametersState extends BaseAppState {
     
     private TreeParameters treeParameters;
     private VersionedHolder<TreeParameters> treeParametersHolder = new VersionedHolder<TreeParameters>();
+    private TreeSkeletonCache skeletons = new TreeSkeletonCache(32);
     
     // Keep track of the panels so that we can easily refresh them
     // when loading new files or otherwise changing parameters
     // outside of the UI.
     private List<PropertyPanel> treePanels;
     
-    // Keep the array of version refs for easy tracking
-    // of changes across all parameters.       
-    private VersionedReference[] versions;
+    // Keep the version refs for easy tracking of changes across 
+    // all parameters along with the stages each panel affects.
+    private List<PanelStages> panelStages;
+    private long[] stageVersions = new long[TreeStage.values().length];
  
     private VersionedReference<Boolean> building;   
     private LevelStats[] levelStats;
@@ -93,14 +97,35 @@ public class TreeParametersState extends BaseAppState {
         return treeParameters;
     }
  
+    /**
+     *  Returns a reference that is updated whenever any of the
+     *  tree parameters change.
+     */
     public VersionedReference<TreeParameters> getTreeParametersRef() {
         return treeParametersHolder.createReference();
     }
  
+    /**
+     *  Returns a reference that is only updated when a parameter
+     *  affecting one of the specified stages changes.
+     */
+    public VersionedReference<TreeParameters> getTreeParametersRef( TreeStage... stages ) {
+        return new StageVersion(stages).createReference();
+    }
+ 
+    /**
+     *  Returns the cache of tree skeletons generated from these
+     *  tree parameters.  Anything that needs a Tree should get it
+     *  from here so that it is only generated once per change.
+     */
+    public TreeSkeletonCache getSkeletonCache() {
+        return skeletons;
+    }
+ 
     @Override
     protected void initialize( Application app ) {
 
-        List<VersionedReference> versionsList = new ArrayList<VersionedReference>();
+        panelStages = new ArrayList<PanelStages>();
     
         TabbedPanel tabs = getState(TreeOptionsState.class).getParameterTabs();
                        
@@ -109,11 +134,12 @@ public class TreeParametersState extends BaseAppState {
  
         // Biggest real life tree is 25 feet in diameter... or 7.62 meters.  We'll
         // let things get more ridiculous
-        properties = new PropertyPanel("glass");
-        treePanels.add(properties);
-        versionsList.add(properties.createReference());
-        tabs.addTab("Tree", properties);
-        
+        Container treeTab = new Container("glass");
+        tabs.addTab("Tree", treeTab);
+        properties = treeTab.addChild(new PropertyPanel(new ElementId("nestedProperties"), "glass"));
+        track(properties, ParameterDependencies.getTreeStages("seed", "trunkRadius", "trunkHeight", 
+                                                              "rootHeight", "YOffset", 
+                                                              "textureURepeat", "textureVScale"));
         properties.addIntProperty("Seed", treeParameters, "seed", 0, 100, 1);
         properties.addFloatProperty("Radius (m)", treeParameters, "trunkRadius", 0.05f, 10f, 0.05f);
         properties.addFloatProperty("Height (m)", treeParameters, "trunkHeight", 0.1f, 50f, 0.1f);
@@ -121,6 +147,12 @@ public class TreeParametersState extends BaseAppState {
         properties.addFloatProperty("Y Offset (m)", treeParameters, "YOffset", 0f, 10f, 0.01f);        
         properties.addIntProperty("Texture U Repeat", treeParameters, "textureURepeat", 1, 12, 1);
         properties.addFloatProperty("Texture V Scale", treeParameters, "textureVScale", 0.01f, 10f, 0.1f);
+ 
+        // The wind settings only feed the material parameters so they 
+        // get their own panel to avoid regenerating the trees.       
+        properties = treeTab.addChild(new PropertyPanel(new ElementId("nestedProperties"), "glass"));
+        track(properties, ParameterDependencies.getTreeStages("flexHeight", "trunkFlexibility", 
+                                                              "branchFlexibility"));
         properties.addFloatProperty("Wind Flex Height (m)", treeParameters, "flexHeight", 0.0f, 50, 0.01f);
         properties.addFloatProperty("Trunk Flex.", treeParameters, "trunkFlexibility", 0.0f, 5.0f, 0.001f); 
         properties.addFloatProperty("Branch Flex.", treeParameters, "branchFlexibility", 0.0f, 5.0f, 0.001f); 
@@ -138,8 +170,9 @@ public class TreeParametersState extends BaseAppState {
             properties = new PropertyPanel(new ElementId("nestedProperties"), "glass");
             nested.addChild(properties);
             
-            treePanels.add(properties);
-            versionsList.add(properties.createReference());
+            track(properties, ParameterDependencies.getBranchStages("enabled", "inherit", 
+                                    "radialSegments", "lengthSegments", "segmentVariation", 
+                                    "taper", "twist", "gravity", "sideJointCount"));
             RollupPanel rollup = branchPanels.addChild(new RollupPanel("Level " + i, nested, "glass"));                     
             rollup.setOpenModel(rollupGroup.addChild(rollup.getOpenModel()));
             if( i > 0 ) {
@@ -165,8 +198,9 @@ public class TreeParametersState extends BaseAppState {
  
             properties = new PropertyPanel(new ElementId("nestedProperties"), "glass");
             nested.addChild(properties);
-            treePanels.add(properties);
-            versionsList.add(properties.createReference());
+            track(properties, ParameterDependencies.getBranchStages("sideJointStartAngle", 
+                                    "inclination", "radiusScale", "lengthScale", 
+                                    "hasEndJoint", "tipRotation"));
             
             properties.addFloatField("Angle (rads)", branch, "sideJointStartAngle", 0, FastMath.PI, 0.01f);
             properties.addFloatField("Inclination (rads)", branch, "inclination", 0f, FastMath.HALF_PI, 0.01f);           
@@ -192,8 +226,9 @@ public class TreeParametersState extends BaseAppState {
             properties = new PropertyPanel(new ElementId("nestedProperties"), "glass");
             nested.addChild(properties);
             
-            treePanels.add(properties);
-            versionsList.add(properties.createReference());
+            track(properties, ParameterDependencies.getBranchStages("enabled", "inherit", 
+                                    "radialSegments", "lengthSegments", "segmentVariation", 
+                                    "taper", "twist", "gravity", "sideJointCount"));
             RollupPanel rollup = rootPanels.addChild(new RollupPanel("Level " + i, nested, "glass"));                     
             rollup.setOpenModel(rollupGroup.addChild(rollup.getOpenModel()));
             if( i > 0 ) {
@@ -218,8 +253,9 @@ public class TreeParametersState extends BaseAppState {
  
             properties = new PropertyPanel(new ElementId("nestedProperties"), "glass");
             nested.addChild(properties);
-            treePanels.add(properties);
-            versionsList.add(properties.createReference());
+            track(properties, ParameterDependencies.getBranchStages("sideJointStartAngle", 
+                                    "inclination", "radiusScale", "lengthScale", 
+                                    "hasEndJoint", "tipRotation"));
             
             properties.addFloatField("Angle (rads)", branch, "sideJointStartAngle", 0, FastMath.PI, 0.01f);
             properties.addFloatField("Inclination (rads)", branch, "inclination", 0f, FastMath.HALF_PI, 0.01f);           
@@ -233,8 +269,7 @@ public class TreeParametersState extends BaseAppState {
         
         // And now the leaves panel
         properties = new PropertyPanel("glass");
-        treePanels.add(properties);
-        versionsList.add(properties.createReference());
+        track(properties, ParameterDependencies.getTreeStages("generateLeaves", "leafScale"));
         tabs.addTab("Leaves", properties);
         properties.addBooleanProperty("Enabled", treeParameters, "generateLeaves");
         properties.addFloatProperty("Size (m)", treeParameters, "leafScale", 0.1f, 10f, 0.1f);
@@ -256,10 +291,18 @@ public class TreeParametersState extends BaseAppState {
             
             Container nested = new Container(new BorderLayout());
             levelStats[i] = nested.addChild(new LevelStats(i), BorderLayout.Position.South);
-            properties = new PropertyPanel("glass");
-            nested.addChild(properties, BorderLayout.Position.Center);
-            treePanels.add(properties);
-            versionsList.add(properties.createReference());
+            Container fields = nested.addChild(new Container("glass"), BorderLayout.Position.Center);
+            
+            // The switch distance doesn't need new meshes so it is
+            // tracked separately from the rest of the level's fields.
+            PropertyPanel distanceProperties = new PropertyPanel(new ElementId("nestedProperties"), "glass");
+            fields.addChild(distanceProperties);
+            track(distanceProperties, ParameterDependencies.getLodStages("distance"));
+            
+            properties = new PropertyPanel(new ElementId("nestedProperties"), "glass");
+            fields.addChild(properties);
+            track(properties, ParameterDependencies.getLodStages(i, "branchDepth", "rootDepth", 
+                                                                 "maxRadialSegments", "reduction"));
             RollupPanel rollup = lodPanels.addChild(new RollupPanel(name, nested, "glass"));
             rollup.setOpenModel(rollupGroup.addChild(rollup.getOpenModel()));
             if( i == 0 ) {
@@ -268,17 +311,18 @@ public class TreeParametersState extends BaseAppState {
                 rollup.setOpen(false);
             }
             
-            properties.addFloatField("Distance (m)", lod, "distance", 0, 1000, 1);
+            distanceProperties.addFloatField("Distance (m)", lod, "distance", 0, 1000, 1);
             properties.addIntField("Branch Depth", lod, "branchDepth", 1, treeParameters.getDepth(), 1); 
             properties.addIntField("Root Depth", lod, "rootDepth", 1, treeParameters.getDepth(), 1); 
             properties.addIntField("Max Radial Segments", lod, "maxRadialSegments", 3, 24, 1);
             properties.addEnumField("Mesh Type", lod, "reduction"); 
         }        
         first.setOpen(true);
+    }
  
- 
-        versions = new VersionedReference[versionsList.size()];
-        versions = versionsList.toArray(versions);        
+    protected void track( PropertyPanel panel, EnumSet<TreeStage> stages ) {
+        treePanels.add(panel);
+        panelStages.add(new PanelStages(panel.createReference(), stages));
     }
 
     @Override
@@ -295,13 +339,19 @@ public class TreeParametersState extends BaseAppState {
     
         nextUpdateCheck += tpf;
         if( nextUpdateCheck > 0.1f ) {
-            boolean changed = false;
-            for( VersionedReference ref : versions ) {
-                if( ref.update() ) {
-                    changed = true;
+            EnumSet<TreeStage> changed = EnumSet.noneOf(TreeStage.class);
+            for( PanelStages panel : panelStages ) {
+                if( panel.version.update() ) {
+                    changed.addAll(panel.stages);
                 }
             }            
-            if( changed ) {
+            if( !changed.isEmpty() ) {
+                if( log.isTraceEnabled() ) {
+                    log.trace("Parameters changed for stages:" + changed);
+                }
+                for( TreeStage stage : changed ) {
+                    stageVersions[stage.ordinal()]++;
+                }
                 treeParametersHolder.incrementVersion();
             }
         }
@@ -358,5 +408,50 @@ public class TreeParametersState extends BaseAppState {
             }
         }
     }
+    
+    /**
+     *  A property panel's version along with the pipeline stages
+     *  that depend on its fields.
+     */
+    private static class PanelStages {
+        VersionedReference version;
+        EnumSet<TreeStage> stages;
+        
+        public PanelStages( VersionedReference version, EnumSet<TreeStage> stages ) {
+            this.version = version;
+            this.stages = stages;
+        }
+    }
+ 
+    /**
+     *  Presents the combined versions of a set of stages as a single
+     *  versioned object.  The stage versions only ever increase so the
+     *  sum changes whenever any one of them does.
+     */
+    private class StageVersion implements VersionedObject<TreeParameters> {
+        private TreeStage[] stages;
+        
+        public StageVersion( TreeStage... stages ) {
+            this.stages = stages.clone();
+        }
+        
+        @Override
+        public long getVersion() {
+            long result = 0;
+            for( TreeStage stage : stages ) {
+                result += stageVersions[stage.ordinal()];
+            }
+            return result;
+        }
+        
+        @Override
+        public TreeParameters getObject() {
+            return treeParameters;
+        }
+        
+        @Override
+        public VersionedReference<TreeParameters> createReference() {
+            return new VersionedReference<TreeParameters>(this);
+        }
+    }
 }
-
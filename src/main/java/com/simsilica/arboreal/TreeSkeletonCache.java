@@ -0,0 +1,274 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal;
+
+import java.beans.BeanInfo;
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ *  A bounded LRU cache of generated Tree skeletons keyed by seed
+ *  and a fingerprint of the TreeParameters that generated them.  The
+ *  fingerprint only covers the fields that ParameterDependencies lists
+ *  for the Skeleton stage so edits to wind, leaves, or levels of detail
+ *  still find the existing skeletons.
+ *  The grid trees, the atlas, and anything else that needs the
+ *  skeleton for a particular seed can share the same Tree so that
+ *  each skeleton is only generated once per parameter change.  Going
+ *  back to earlier parameters (undoing a slider change, for example)
+ *  will also find the old skeletons if they are still in the cache.
+ *
+ *  <p>The returned Trees are shared and must be treated as immutable.</p>
+ *
+ *  @author    Paul Speed
+ */
+public class TreeSkeletonCache {
+
+    static Logger log = LoggerFactory.getLogger(TreeSkeletonCache.class);
+
+    private static final List<String> treeFields 
+            = ParameterDependencies.getTreeFields(TreeStage.Skeleton);
+    private static final List<String> branchFields 
+            = ParameterDependencies.getBranchFields(TreeStage.Skeleton);
+    private static Map<String, PropertyDescriptor> treeProperties;
+
+    private final Map<Key, Entry> cache;
+    private int maxSize;
+    private long hits;
+    private long misses;
+
+    public TreeSkeletonCache( int maxSize ) {
+        this.maxSize = maxSize;
+        this.cache = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry( Map.Entry<Key, Entry> eldest ) {
+                    return size() > TreeSkeletonCache.this.maxSize;
+                }
+            };
+    }
+ 
+    public synchronized void setMaxSize( int maxSize ) {
+        this.maxSize = maxSize;
+    }
+    
+    public synchronized int getMaxSize() {
+        return maxSize;
+    }
+ 
+    /**
+     *  Captures the skeleton fingerprint and a private copy of the
+     *  specified parameters.  This must be called on the thread that
+     *  edits the parameters, usually when a build is queued, so that
+     *  the builder threads never read the live parameters.
+     */
+    public static Snapshot snapshot( TreeParameters treeParameters ) {
+        TreeParameters copy = new TreeParameters(treeParameters.getLodCount());
+        copy.fromMap(treeParameters.toMap());
+        
+        Map<String, Object> fingerprint = new HashMap<String, Object>();
+        try {
+            Map<String, PropertyDescriptor> properties = getTreeProperties();
+            for( String field : treeFields ) {
+                PropertyDescriptor pd = properties.get(field);
+                if( pd == null || pd.getReadMethod() == null ) {
+                    throw new IllegalArgumentException("No readable property:" + field);
+                }
+                fingerprint.put(field, pd.getReadMethod().invoke(copy));
+            }
+            for( int i = 0; i < copy.getDepth(); i++ ) {
+                addBranch(fingerprint, "branch[" + i + "].", copy.getBranch(i));
+                addBranch(fingerprint, "root[" + i + "].", copy.getRoot(i));
+            }
+        } catch( Exception e ) {
+            // Better to miss the cache than to share the wrong skeleton
+            log.warn("Error reading skeleton fields, using all parameters", e);
+            fingerprint = copy.toMap();
+        }
+        return new Snapshot(fingerprint, copy);
+    }
+ 
+    private static void addBranch( Map<String, Object> fingerprint, String prefix, 
+                                   BranchParameters branch ) throws Exception {
+        for( String field : branchFields ) {
+            fingerprint.put(prefix + field, BranchParameters.class.getField(field).get(branch));
+        }
+    }
+ 
+    private static synchronized Map<String, PropertyDescriptor> getTreeProperties() 
+                                                throws IntrospectionException {
+        if( treeProperties == null ) {
+            treeProperties = new HashMap<String, PropertyDescriptor>();
+            BeanInfo info = Introspector.getBeanInfo(TreeParameters.class);
+            for( PropertyDescriptor pd : info.getPropertyDescriptors() ) {
+                treeProperties.put(pd.getName(), pd);
+            }
+        }
+        return treeProperties;
+    }
+ 
+    /**
+     *  Returns the Tree skeleton for the specified seed and parameter 
+     *  snapshot, generating it if necessary.  Concurrent requests for the 
+     *  same skeleton will wait for a single generation rather than each 
+     *  generating their own.
+     */
+    public Tree getTree( int seed, Snapshot snapshot ) {
+        Key key = new Key(seed, snapshot.fingerprint);
+        Entry entry;
+        synchronized( this ) {
+            entry = cache.get(key);
+            if( entry == null ) {
+                misses++;
+                entry = new Entry(key, snapshot.parameters);
+                cache.put(key, entry);
+            } else {
+                hits++;
+            }
+        }
+        
+        // Generate outside of the cache lock so that other skeletons
+        // can be retrieved or generated at the same time.
+        return entry.getTree();
+    }
+    
+    public synchronized void clear() {
+        cache.clear();
+    }
+    
+    public synchronized int getSize() {
+        return cache.size();
+    }
+    
+    public synchronized long getHitCount() {
+        return hits;
+    }
+    
+    public synchronized long getMissCount() {
+        return misses;
+    }
+ 
+    @Override
+    public synchronized String toString() {
+        return "TreeSkeletonCache[size=" + cache.size() + ", hits=" + hits + ", misses=" + misses + "]";
+    }
+    
+    /**
+     *  The skeleton fields of a TreeParameters along with a copy of the
+     *  whole thing to generate from.  Both are captured at the same time
+     *  and never change afterwards.
+     */
+    public static class Snapshot {
+        private final Map<String, Object> fingerprint;
+        private final TreeParameters parameters;
+        
+        private Snapshot( Map<String, Object> fingerprint, TreeParameters parameters ) {
+            this.fingerprint = fingerprint;
+            this.parameters = parameters;
+        }
+ 
+        /**
+         *  Returns the copy of the parameters that were captured.  This
+         *  must be treated as read-only.
+         */       
+        public TreeParameters getParameters() {
+            return parameters;
+        }
+    }
+    
+    private static class Entry {
+        private final Key key;
+        private final TreeParameters parameters;
+        private Tree tree;
+        
+        public Entry( Key key, TreeParameters parameters ) {
+            this.key = key;
+            this.parameters = parameters;
+        }
+        
+        public synchronized Tree getTree() {
+            if( tree == null ) {
+                if( log.isTraceEnabled() ) {
+                    log.trace("******* generating tree for seed:" + key.seed + " ********");
+                }
+                
+                // Generate from the snapshot's copy rather than the 
+                // live parameters so that edits made while we are
+                // generating can't end up cached under the old key.
+                TreeGenerator treeGen = new TreeGenerator();        
+                tree = treeGen.generateTree(key.seed, parameters);
+            }
+            return tree;
+        }
+    }
+    
+    private static class Key {
+        final int seed;
+        final Map<String, Object> fingerprint;
+        final int hash;
+        
+        public Key( int seed, Map<String, Object> fingerprint ) {
+            this.seed = seed;
+            this.fingerprint = fingerprint;
+            this.hash = 31 * seed + fingerprint.hashCode();
+        }
+        
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+        
+        @Override
+        public boolean equals( Object o ) {
+            if( o == this ) {
+                return true;
+            }
+            if( o == null || o.getClass() != getClass() ) {
+                return false;
+            }
+            Key other = (Key)o;
+            return seed == other.seed && fingerprint.equals(other.fingerprint);
+        }
+    }
+}
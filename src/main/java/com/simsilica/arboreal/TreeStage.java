@@ -0,0 +1,81 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+ 
+package com.simsilica.arboreal;
+
+
+/**
+ *  The stages of the tree generation pipeline that a parameter
+ *  change can invalidate.  Changes are tracked per stage so that
+ *  editing a value only re-runs the work that actually depends on it.
+ *
+ *  @see ParameterDependencies
+ *  @author    Paul Speed
+ */
+public enum TreeStage {
+ 
+    /**
+     *  The generated Tree skeleton of joints and segments.  Every
+     *  other geometry stage is built from it.
+     */
+    Skeleton,
+    
+    /**
+     *  The trunk, branch, and root meshes for each level of detail.
+     */
+    TrunkMesh,
+    
+    /**
+     *  The leaf meshes generated from the branch tips.
+     */
+    Leaves,
+    
+    /**
+     *  The impostor atlas rendered from the full detail tree.
+     */
+    Impostor,
+    
+    /**
+     *  Values that are only passed to the shaders as material
+     *  parameters, like the wind flex settings.
+     */
+    MaterialUniforms,
+    
+    /**
+     *  The distances at which the levels of detail switch.
+     */
+    LodSwitch
+}